@@ -472,9 +472,18 @@ public class Ninep {
 			p32(b, data.remaining());
 			b.put(data);
 		}
+		// pack all but the data, which the caller sends separately, following the header
+		final void packheader(ByteBuffer b){
+			b.put((byte)MTwrite);
+			packtag(b);
+			p32(b, fid);
+			p64(b, offset);
+			p32(b, data.remaining());
+		}
 		public int mtype() { return MTwrite; }
 		public String mname(){ return "Twrite"; }
 		public final int packedsize(){ return H+FID+OFFSET+COUNT+data.remaining(); }
+		final int headersize(){ return H+FID+OFFSET+COUNT; }
 		public final String toString(){ return "Twrite("+tag+","+fid+","+offset+","+data.remaining()+")"; }
 	}
 	public class Tclunk extends Tmsg {
@@ -918,13 +927,241 @@ public class Ninep {
 		d.mtime = g32(b);
 		d.length = g64(b);
 		d.name = gets(b);
-		d.uid = gets(b);
-		d.gid = gets(b);
-		d.muid = gets(b);
+		d.uid = getid(b);
+		d.gid = getid(b);
+		d.muid = getid(b);
 		if(b.position() != pos+n)
 			throw new FormatError("Dir badly packed");
 		return d;
 	}
+
+	/**
+	 * RView is a read-only view of a reply message in a buffer, decoding each field only when it is asked for,
+	 * so that replies can be examined and dispatched without creating objects.
+	 * A view is reused by wrapping another message, and must not be used once the buffer's contents change.
+	 * The accessors for fields that the message's type does not have return nonsense.
+	 */
+	public static final class RView {
+		private ByteBuffer	b;
+		private int	base;	// index of size[4]
+		private ByteBuffer	dup;	// duplicate of b, to copy data without allocation
+
+		/** View the message at <i>b</i>'s position, which must hold at least its size, type and tag; the buffer's position is unchanged */
+		public RView wrap(ByteBuffer b){
+			if(b != this.b)
+				dup = null;
+			this.b = b;
+			this.base = b.position();
+			return this;
+		}
+
+		/** Return the message's size[4], which includes the size itself */
+		public int size(){ return g32(b, base); }
+
+		/** Return the message's type */
+		public int type(){ return g8(b, base+BIT32SZ); }
+
+		/** Return the message's tag */
+		public int tag(){ return g16(b, base+BIT32SZ+BIT8SZ); }
+
+		/** Return true iff the message is an Rerror */
+		public boolean isError(){ return type() == MRerror; }
+
+		/** Rerror: return the error text, which is decoded as a String */
+		public String ename(){ return gets(b, base+H); }
+
+		/** Rversion: return msize */
+		public int msize(){ return g32(b, base+H); }
+
+		/** Rread, Rwrite: return count */
+		public int count(){ return g32(b, base+H); }
+
+		/** Rread: return the index in the buffer of the first byte of data */
+		public int dataIndex(){ return base+H+COUNT; }
+
+		/** Rread: copy as much of the data as fits in <i>dest</i>, returning the number of bytes copied */
+		public int data(ByteBuffer dest){
+			int n = Math.min(count(), dest.remaining());
+			if(dup == null)
+				dup = b.duplicate();
+			dup.limit(dataIndex()+n);
+			dup.position(dataIndex());
+			dest.put(dup);
+			return n;
+		}
+
+		/** Rattach, Rauth, Ropen, Rcreate: return the qid's type */
+		public int qidType(){ return g8(b, base+H); }
+
+		/** Rattach, Rauth, Ropen, Rcreate: return the qid's version */
+		public int qidVers(){ return g32(b, base+H+BIT8SZ); }
+
+		/** Rattach, Rauth, Ropen, Rcreate: return the qid's path */
+		public long qidPath(){ return g64(b, base+H+BIT8SZ+BIT32SZ); }
+
+		/** Ropen, Rcreate: return iounit */
+		public int iounit(){ return g32(b, base+H+QIDSZ); }
+
+		/** Rwalk: return the number of qids */
+		public int nwqid(){ return g16(b, base+H); }
+
+		/** Rwalk: return the type of qid <i>i</i> */
+		public int qidType(int i){ return g8(b, wqid(i)); }
+
+		/** Rwalk: return the version of qid <i>i</i> */
+		public int qidVers(int i){ return g32(b, wqid(i)+BIT8SZ); }
+
+		/** Rwalk: return the path of qid <i>i</i> */
+		public long qidPath(int i){ return g64(b, wqid(i)+BIT8SZ+BIT32SZ); }
+
+		private int wqid(int i){ return base+H+LEN+i*QIDSZ; }
+
+		/** Rstat: make <i>d</i> view the message's directory entry, and move it there */
+		public DirView stat(DirView d) throws FormatError {
+			int start = base+H+LEN;
+			d.wrap(b, start, start+g16(b, base+H));
+			if(!d.next())
+				throw new FormatError("bad Ninep stat count");
+			return d;
+		}
+	}
+
+	/**
+	 * DirView is a read-only cursor over directory entries packed in a buffer, as read from a directory,
+	 * giving each entry's fields without creating a Dir; its strings are decoded only when asked for.
+	 * The cursor starts before the first entry, and {@link #next} moves it to each entry in turn.
+	 * A view is reused by wrapping another buffer, and must not be used once the buffer's contents change.
+	 */
+	public static final class DirView {
+		private ByteBuffer	b;
+		private int	pos = -1;	// index of the current entry's size[2], or -1 if none
+		private int	next;	// index of the next entry
+		private int	end;
+		private int	name, uid, gid, muid;	// indices of the strings' lengths
+
+		/** View the entries between <i>b</i>'s position and limit; the buffer's position is unchanged */
+		public DirView wrap(ByteBuffer b){
+			return wrap(b, b.position(), b.limit());
+		}
+
+		final DirView wrap(ByteBuffer b, int start, int end){
+			this.b = b;
+			this.pos = -1;
+			this.next = start;
+			this.end = end;
+			return this;
+		}
+
+		/**
+		 * Move to the next entry, returning false if there is none.
+		 * @throws	FormatError	if the entry is badly packed
+		 */
+		public boolean next() throws FormatError {
+			if(next >= end){
+				pos = -1;
+				return false;
+			}
+			if(end-next < STATFIXLEN)
+				throw new FormatError("Dir badly packed");
+			int p = next;
+			int e = p+LEN+g16(b, p);
+			int s = p+STATFIXLEN-4*STR;
+			name = s;
+			s += STR+g16(b, s);
+			uid = s;
+			if(s+STR > e)
+				throw new FormatError("Dir badly packed");
+			s += STR+g16(b, s);
+			gid = s;
+			if(s+STR > e)
+				throw new FormatError("Dir badly packed");
+			s += STR+g16(b, s);
+			muid = s;
+			if(s+STR > e)
+				throw new FormatError("Dir badly packed");
+			s += STR+g16(b, s);
+			if(s != e || e > end)
+				throw new FormatError("Dir badly packed");
+			pos = p;
+			next = e;
+			return true;
+		}
+
+		/** Return the server type */
+		public int dtype(){ return g16(b, pos+LEN); }
+
+		/** Return the server subtype */
+		public int dev(){ return g32(b, pos+LEN+BIT16SZ); }
+
+		/** Return the type of the file's qid */
+		public int qidType(){ return g8(b, pos+LEN+BIT16SZ+BIT32SZ); }
+
+		/** Return the version of the file's qid */
+		public int qidVers(){ return g32(b, pos+LEN+BIT16SZ+BIT32SZ+BIT8SZ); }
+
+		/** Return the path of the file's qid */
+		public long qidPath(){ return g64(b, pos+LEN+BIT16SZ+BIT32SZ+BIT8SZ+BIT32SZ); }
+
+		/** Return the file's mode bits */
+		public int mode(){ return g32(b, pos+LEN+BIT16SZ+BIT32SZ+QIDSZ); }
+
+		/** Return the last access time */
+		public int atime(){ return g32(b, pos+LEN+BIT16SZ+2*BIT32SZ+QIDSZ); }
+
+		/** Return the last modification time */
+		public int mtime(){ return g32(b, pos+LEN+BIT16SZ+3*BIT32SZ+QIDSZ); }
+
+		/** Return the file's length */
+		public long length(){ return g64(b, pos+LEN+BIT16SZ+4*BIT32SZ+QIDSZ); }
+
+		/** Return true iff the file is a directory */
+		public boolean isDir(){ return (mode() & Dir.DMDIR) != 0; }
+
+		/** Return the file's name, which is decoded as a String */
+		public String name(){ return gets(b, name); }
+
+		/** Return the owner's name, which is decoded as a String */
+		public String uid(){ return getid(b, uid); }
+
+		/** Return the group's name, which is decoded as a String */
+		public String gid(){ return getid(b, gid); }
+
+		/** Return the name of the user who last modified the file, which is decoded as a String */
+		public String muid(){ return getid(b, muid); }
+
+		/** Return true iff the file's name is <i>s</i>, without decoding the name when <i>s</i> is ASCII */
+		public boolean nameEquals(String s){
+			int n = g16(b, name);
+			int l = s.length();
+			if(l > n)
+				return false;	// can't match: UTF-8 has at least a byte a character
+			for(int i = 0; i < l; i++){
+				char c = s.charAt(i);
+				if(c >= 0x80)
+					return name().equals(s);
+				if(b.get(name+STR+i) != c)
+					return false;
+			}
+			return l == n;
+		}
+
+		/** Return the file's qid, as a new Qid */
+		public Qid qid(){ return new Qid(qidPath(), qidVers(), qidType()); }
+
+		/** Return the whole entry as a new Dir */
+		public Dir dir(){
+			Dir d = new Dir(name(), qid(), length(), mode());
+			d.dtype = dtype();
+			d.dev = dev();
+			d.atime = atime();
+			d.mtime = mtime();
+			d.uid = uid();
+			d.gid = gid();
+			d.muid = muid();
+			return d;
+		}
+	}
+
 	public int packdirsize(Dir d){
 		return STATFIXLEN+utflen(d.name)+utflen(d.uid)+utflen(d.gid)+utflen(d.muid);
 	}
@@ -956,23 +1193,81 @@ public class Ninep {
 	}
 
 	private static final void puts(ByteBuffer b, String s){
-		byte[] a = Strings.bytes(s);
-		p16(b, a.length);
-		b.put(a);
+		int p = b.position();
+		b.position(p+STR);
+		int n = Strings.pututf(b, s);	// encoded in place, then its length filled in
+		b.put(p, (byte)n);
+		b.put(p+1, (byte)(n>>8));
 	}
 	private static final String gets(ByteBuffer b){
 		int n = g16(b);
-		byte[] a = new byte[n];
-		b.get(a);
-		try{
-			return new String(a, "UTF-8");
-		}catch(java.io.UnsupportedEncodingException e){
-			throw new RuntimeException("UTF-8 String encoding unimplemented");
-		}
+		int p = b.position();
+		String s = Strings.utf(b, p, n);
+		b.position(p+n);
+		return s;
+	}
+
+	/*
+	 * user and group names (uid, gid, muid) repeat endlessly in directory entries, so short ASCII ones are interned
+	 * in a small table shared by all, letting the entries for the same few users share their Strings.
+	 * The table is indexed by a hash of the encoding, and an entry that collides is simply replaced, which bounds its size;
+	 * since Strings are immutable, concurrent users can at worst lose an entry.
+	 */
+	private static final int Nintern = 512;	// power of 2
+	private static final int Maxintern = 32;	// longest name interned, in bytes
+	private static final String[] interned = new String[Nintern];
+
+	private static final String getid(ByteBuffer b){
+		int n = g16(b);
+		int p = b.position();
+		String s = intern(b, p, n);
+		b.position(p+n);
+		return s;
+	}
+	private static final String getid(ByteBuffer b, int i){
+		return intern(b, i+STR, g16(b, i));
+	}
+	private static final String intern(ByteBuffer b, int i, int n){
+		if(n > Maxintern)
+			return Strings.utf(b, i, n);
+		int h = 0;
+		for(int k = 0; k < n; k++){
+			int c = b.get(i+k);
+			if(c < 0)
+				return Strings.utf(b, i, n);	// not ASCII
+			h = 31*h + c;
+		}
+		int slot = (h ^ (h>>>9)) & (Nintern-1);
+		String s = interned[slot];
+		if(s != null && s.length() == n){
+			int k = 0;
+			while(k < n && s.charAt(k) == b.get(i+k))
+				k++;
+			if(k == n)
+				return s;
+		}
+		s = Strings.utf(b, i, n);
+		interned[slot] = s;
+		return s;
 	}
 
 	private static final int g8(ByteBuffer b){ return (int)b.get() & 0xFF; }
 
+	// absolute forms, for views, which leave the buffer's position alone
+	private static final int g8(ByteBuffer b, int i){ return (int)b.get(i) & 0xFF; }
+	private static final int g16(ByteBuffer b, int i){
+		return (g8(b, i+1) << 8) | g8(b, i);
+	}
+	private static final int g32(ByteBuffer b, int i){
+		return (g8(b, i+3) << 24) | (g8(b, i+2) << 16) | (g8(b, i+1) << 8) | g8(b, i);
+	}
+	private static final long g64(ByteBuffer b, int i){
+		return ((long)g32(b, i+4) << 32) | ((long)g32(b, i) & 0xFFFFFFFFL);
+	}
+	private static final String gets(ByteBuffer b, int i){
+		return Strings.utf(b, i+STR, g16(b, i));
+	}
+
 	private static final void p16(ByteBuffer b, int n){
 		b.put((byte)n);
 		b.put((byte)(n>>8));
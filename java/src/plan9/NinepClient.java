@@ -4,29 +4,64 @@ package plan9;
  * 9P2000 client
  * (a renaming of the StyxClient of styx-n-9p.googlecode.com)
  *
- *
- * TO DO
- *	full walk (chunks of MAXWELEM, ..)
- *
  * Copyright © 2005 Vita Nuova Holdings Limited [C H Forsyth, forsyth@vitanuova.com]
  * Subject to the terms of the MIT-template (google for a copy)
  */
 
 import java.nio.ByteBuffer;	// not ideal, but will do for now
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.Channel;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.StringTokenizer;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.AsynchronousCloseException;
 
 import static plan9.Ninep.*;
 
+import plan9.lib.Buffers;
 import plan9.lib.Misc;
 import plan9.lib.Strings;
 
@@ -121,6 +156,27 @@ public class NinepClient {
 		ioerror(errstr());
 	}
 
+	private static ThreadFactory vthreads;
+	private static boolean vchecked;
+
+	/**
+	 * Return a ThreadFactory that makes virtual threads, or null if the Java runtime does not provide them.
+	 * Passed to the Conn constructor, it runs the connection's reader and writer on virtual threads;
+	 * callers blocked waiting for replies park without holding monitors, so they too can be virtual threads.
+	 */
+	public static synchronized ThreadFactory virtualThreads(){
+		if(!vchecked){
+			vchecked = true;
+			try{
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				vthreads = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+			}catch(Exception e){
+				vthreads = null;	// not available before Java 21
+			}
+		}
+		return vthreads;
+	}
+
 	private static Ninep ninep = new Ninep();
 
 	private static Log log = LogFactory.logger(NinepClient.class);
@@ -138,60 +194,143 @@ public class NinepClient {
 	 * Conn, FS, and FD do all the real work.
 	 */
 	public NinepClient(){
-		settag(0);
-		settag(Ninep.NOTAG);
 	}
 
+	// bytes of queued messages the Writer will send in a single write
+	static final int	Writebatch = 64*1024;
+
+	// bytes of a local file mapped at once by FD.transferTo and FD.transferFrom
+	static final int	Mapchunk = 64*1024*1024;
+
+	// Treads or Twrites kept in flight by FD.transferTo and FD.transferFrom
+	static final int	Transferwindow = 16;
+
+	// Twrite data of at least this many bytes is written from the caller's buffer, not copied, when the channel can gather
+	static final int	Gathermin = 1024;
+
+	// action taken when a request's reply arrives (or the connection fails), by the thread that delivers it; it must not block
+	private interface Reply {
+		void replied(Request req);
+	}
+
+	// a caller waiting for a reply parks (see LockSupport) rather than waiting on a monitor, so that a virtual thread does not pin its carrier
 	private static class Request {
+		static final AtomicReferenceFieldUpdater<Request,Reply> Then = AtomicReferenceFieldUpdater.newUpdater(Request.class, Reply.class, "then");
+		static final AtomicIntegerFieldUpdater<Request> Deststate = AtomicIntegerFieldUpdater.newUpdater(Request.class, "deststate");
+		static final int	Owned = 0, Filling = 1, Abandoned = 2;	// deststate
+
 		Ninep.Tmsg	t;
-		Ninep.Rmsg	r;
+		volatile Ninep.Rmsg	r;
 		Request	flushed;
 		long	timeout;
+		volatile Reply	then;	// run once, when the request is answered
+		volatile Thread	waiter;
+		ByteBuffer	buf;	// pooled buffer holding the Rread or Twrite data, until released
+		ByteBuffer	dest;	// if not null, the Reader puts the data of an Rread here when it fits
+		boolean	inplace;	// the Rread's data was put in dest
+		volatile int	deststate;	// Owned by the caller, Filling while the Reader puts data in dest, Abandoned once the caller no longer wants it
+		volatile Thread	destwaiter;	// caller waiting in abandondest for a fill to finish
+		private Semaphore	slot;	// if not null, the connection's limit on outstanding requests, released on reply
 
 		Request(Ninep.Tmsg t){ this.t = t; timeout = 0; }
 		Request(Ninep.Tmsg t, Request old){ this.t = t; this.flushed = old; timeout = old.timeout; }
 
 		void timelimit(long ms){ timeout = ms; }
 
-		synchronized final void awaitreply() throws InterruptedException {
-			if(timeout == 0){
-				while(r == null)
-					this.wait();
-			}else{
-				long t0 = System.currentTimeMillis();
+		final void awaitreply() throws InterruptedException {
+			waiter = Thread.currentThread();
+			try{
+				long t0 = System.nanoTime();
 				while(r == null){
-					this.wait(timeout);
-					if(r != null)
-						break;
-					if(t0+timeout < System.currentTimeMillis())
-						throw new InterruptedException("file system operation timed-out");
+					if(timeout == 0)
+						LockSupport.park(this);
+					else{
+						long left = timeout*1000000 - (System.nanoTime()-t0);
+						if(left <= 0)
+							throw new InterruptedException("file system operation timed-out");
+						LockSupport.parkNanos(this, left);
+					}
+					if(r == null && Thread.interrupted())
+						throw new InterruptedException();
 				}
+			}finally{
+				waiter = null;
 			}
 		}
 
-		synchronized final void replied(Ninep.Rmsg reply){
+		final void replied(Ninep.Rmsg reply){
 			if(this.t instanceof Ninep.Tflush && reply instanceof Ninep.Rerror)
 				reply = ninep.new Rflush(reply.tag);	// must not Rerror a Tflush
 			this.r = reply;
-			this.notify();
+			wakeup();
 			if(false && log.tracing())
 				log.trace("notify: %d %s %s", t.tag, t.mname(), reply.mname());
 		}
 
-		synchronized final void replyerr(String why, boolean hangup){
-			Ninep.Rmsg reply;
-
+		final void replyerr(String why, boolean hangup){
 			if(this.t instanceof Ninep.Tflush)
-				reply = ninep.new Rflush(this.t.tag);	// must not Rerror a Tflush
+				this.r = ninep.new Rflush(this.t.tag);	// must not Rerror a Tflush
 			else
-				reply = ninep.new Rerror(this.t.tag, why, hangup);
-			this.r = reply;
-			this.notify();
+				this.r = ninep.new Rerror(this.t.tag, why, hangup);
+			wakeup();
 		}
 
 		final void replyerr(String why){
 			replyerr(why, false);
 		}
+
+		// the Reader's claim on dest, to put an Rread's data there; false if the caller has given it up
+		final boolean claimdest(){
+			return Deststate.compareAndSet(this, Owned, Filling);
+		}
+
+		final void releasedest(){
+			deststate = Owned;
+			Thread w = destwaiter;
+			if(w != null)
+				LockSupport.unpark(w);
+		}
+
+		// the caller is about to return without the reply: wait for any fill in progress, and prevent later ones, so dest can be reused.
+		// the fill is a blocking read of one message's data, which can take a while on a slow link, so the caller parks meanwhile
+		final void abandondest(){
+			if(dest == null)
+				return;
+			destwaiter = Thread.currentThread();
+			boolean intr = false;
+			try{
+				while(!Deststate.compareAndSet(this, Owned, Abandoned) && deststate != Abandoned){
+					LockSupport.park(this);
+					if(Thread.interrupted())
+						intr = true;	// keep waiting: dest must not be reused while the Reader fills it
+				}
+			}finally{
+				destwaiter = null;
+				if(intr)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		// the request has left the connection: let another take its place
+		final void freeslot(){
+			Semaphore s;
+			synchronized(this){
+				s = slot;
+				slot = null;
+			}
+			if(s != null)
+				s.release();
+		}
+
+		private void wakeup(){
+			freeslot();
+			Thread w = waiter;
+			if(w != null)
+				LockSupport.unpark(w);
+			Reply h = Then.getAndSet(this, null);
+			if(h != null)
+				h.replied(this);
+		}
 	}
 
 	static class ReqEl {
@@ -206,87 +345,180 @@ public class NinepClient {
 		ReqEl	qh;
 		ReqEl	qt;
 		String	err;
+		final ReentrantLock	lock = new ReentrantLock();
+		final Condition	arriving = lock.newCondition();
+		volatile Runnable	wake;	// non-null: run after each put, for a Conn served by an Engine
 
-		synchronized Request get() throws InterruptedException {
+		Request get() throws InterruptedException {
 			ReqEl el;
 
-			while((el = qh) == null && err == null)
-				wait();
-			if(err != null)
-				throw new InterruptedException(Eintr);
-			qh = el.next;
-			return el.r;
-		}
-		synchronized void put(Request r) throws InterruptedIOException, IOException {
-			if(err != null)
-				ioerror(err);
-			ReqEl el = new ReqEl(r, null);
-			if(qh == null){
-				qh = el;
-				notify();
-			}else
-				qt.next = el;
-			qt = el;
+			lock.lock();
+			try{
+				while((el = qh) == null && err == null)
+					arriving.await();
+				if(err != null)
+					throw new InterruptedException(Eintr);
+				qh = el.next;
+				return el.r;
+			}finally{
+				lock.unlock();
+			}
+		}
+		void put(Request r) throws InterruptedIOException, IOException {
+			lock.lock();
+			try{
+				if(err != null)
+					ioerror(err);
+				ReqEl el = new ReqEl(r, null);
+				if(qh == null){
+					qh = el;
+					arriving.signal();
+				}else
+					qt.next = el;
+				qt = el;
+			}finally{
+				lock.unlock();
+			}
+			Runnable w = wake;
+			if(w != null)
+				w.run();
+		}
+		// take the request at the front of the queue without waiting, returning null if there is none, or if put(null) has closed the queue
+		Request poll(){
+			ReqEl el;
+
+			lock.lock();
+			try{
+				if((el = qh) == null || el.r == null)
+					return null;
+				qh = el.next;
+				return el.r;
+			}finally{
+				lock.unlock();
+			}
+		}
+		// return true if put(null) has closed the queue, and the requests before it have been taken
+		boolean closed(){
+			lock.lock();
+			try{
+				return qh != null && qh.r == null;
+			}finally{
+				lock.unlock();
+			}
+		}
+		// move requests from the front of the queue to batch while they fit within limit bytes, including the size already taken
+		void take(ArrayList<Request> batch, int size, int limit){
+			ReqEl el;
+
+			lock.lock();
+			try{
+				for(; (el = qh) != null && el.r != null; qh = el.next){
+					size += el.r.t.packedsize();
+					if(size > limit)
+						break;
+					batch.add(el.r);
+				}
+			}finally{
+				lock.unlock();
+			}
 		}
-		synchronized void poison(String reason){
+		void poison(String reason){
 			ReqEl el;
 
-			if(err == null)
-				err = reason;
-			for(; (el = qh) != null; qh = el.next)
-				el.r.replyerr(err, true);
+			lock.lock();
+			try{
+				if(err == null)
+					err = reason;
+				for(; (el = qh) != null; qh = el.next)
+					if(el.r != null)	// not put(null)
+						el.r.replyerr(err, true);
+			}finally{
+				lock.unlock();
+			}
 		}
 	}
 
-	// record a set of outstanding Requests, in order to ensure replying to flushes in correct order on error
+	// record the set of outstanding Requests, indexed by tag, in order to ensure replying to flushes in correct order on error
 	private static class Requests {
-		ReqEl	set;	// set of requests; tags are unique
-		String	err;	// !=null: fail incoming requests with this error
+		final AtomicReferenceArray<Request>	set = new AtomicReferenceArray<Request>(64*1024);	// requests by tag; tags are unique
+		volatile String	err;	// !=null: fail incoming requests with this error
+		final Tags	tags;	// the connection's tags, released as replies arrive
 
-		// add a new Request; ordering is unimportant
-		synchronized final void add(Request req){
-			if(err == null)
-				set = new ReqEl(req, set);
-			else
-				req.replied(ninep.new Rerror(req.t.tag, err, true));
+		Requests(Tags tags){
+			this.tags = tags;
 		}
 
-		// find the Request corresponding to r's tag, and mark it done, notifying its author, and freeing the tag
-		final void completed(Ninep.Rmsg r){
-			ReqEl el, prev;
-			synchronized(this){
-				prev = null;
-				for(el = set; el != null; el = el.next){
-					if(el.r.t.tag == r.tag){
-						if(prev != null)
-							prev.next = el.next;
-						else
-							set = el.next;
-						puttag(r.tag);
-						el.r.replied(r);
-						return;
-					}
-					prev = el;
-				}
+		// add a new Request in its tag's slot
+		final void add(Request req){
+			int tag = req.t.tag;
+			if(err == null){
+				set.set(tag, req);
+				if(err == null)
+					return;
+				// raced with shutdown; whichever removes it from the set replies
+				if(!set.compareAndSet(tag, req, null))
+					return;
+			}
+			req.replied(ninep.new Rerror(tag, err, true));
+		}
+
+		// return the outstanding Request with the given tag, leaving it outstanding
+		final Request get(int tag){
+			return set.get(tag);
+		}
+
+		// find the Request corresponding to r's tag, and mark it done, notifying its author, and freeing the tag;
+		// buf, if not null, is the pooled buffer holding r, which then belongs to the request
+		final boolean completed(Ninep.Rmsg r, ByteBuffer buf){
+			Request req = set.getAndSet(r.tag, null);
+			if(req != null){
+				tags.put(r.tag);
+				if(buf != null)
+					req.buf = buf;
+				req.replied(r);
+				return true;
 			}
 			log.warn("unexpected reply tag %d type %d (%s)", r.tag, r.mtype(), r.mname());
 			//System.out.print("TAG: "+where());
+			return false;
+		}
+		// take req out of the set, returning true if it was still outstanding, in which case the caller must answer it
+		final boolean remove(Request req){
+			int tag = req.t.tag;
+			if(set.compareAndSet(tag, req, null)){
+				tags.put(tag);
+				return true;
+			}
+			return false;
+		}
+		// answer req with Rflush if it is still outstanding, because its Tflush has been answered
+		final void flushed(Request req){
+			int tag = req.t.tag;
+			if(set.compareAndSet(tag, req, null)){
+				tags.put(tag);
+				req.replied(ninep.new Rflush(tag));
+			}
 		}
 		final void diagnose(String why){
 			log.warn("Ninep message error: "+why);
 		}
 
 		// shut down the channel, with reason, forcing all pending requests to fail, and answering flushes
+		// after the requests they flush
 		final void shutdown(String why){
 			if(log.debugging())
 				log.debug("shut down: "+why);
 			synchronized(this){
 				if(err == null)	// first error might be most accurate
 					err = why;
-				ReqEl el;
-				while((el = set) != null){
-					set = el.next;
-					el.r.replyerr(err, true);
+			}
+			for(int pass = 0; pass < 2; pass++){
+				for(int i = 0; i < set.length(); i++){
+					Request req = set.get(i);
+					if(req == null || (req.t instanceof Ninep.Tflush) != (pass == 1))
+						continue;
+					if(set.compareAndSet(i, req, null))
+						req.replyerr(err, true);
 				}
 			}
 		}
@@ -296,239 +528,1015 @@ public class NinepClient {
 	// because there isn't any operation to mark a ByteChannel as no longer used
 	// instead, separate Fid and FD
 	private static class Fid {
-		int	fid;
-		int	inuse;
-		Fid	next;
+		static final AtomicIntegerFieldUpdater<Fid> Refs = AtomicIntegerFieldUpdater.newUpdater(Fid.class, "inuse");
+
+		final int	fid;
+		volatile int	inuse;	// references; 0 once the last is dropped, and -1 while on the free stack
+		volatile int	next;	// fid number of the next free Fid, or 0
 
 		Fid(int v){
 			this.fid = v;
 			this.inuse = 1;
-			this.next = null;
 		}
 
-		synchronized Fid	incref(){
-			inuse++;
+		final Fid	incref(){
+			Refs.incrementAndGet(this);
 			return this;
 		}
 
-		synchronized int	decref(){
-			return --inuse;
-		}
-
-		synchronized boolean isfree(){
-			return inuse == 0;
+		final int	decref(){
+			return Refs.decrementAndGet(this);
 		}
 	}
 
-	// recycle fids by recycling FDs
+	// recycle fids by recycling FDs.
+	// each Fid keeps its number for life, and is found by number in a table that only grows;
+	// free Fids are kept on a lock-free stack, linked by number, whose head carries a count
+	// of changes so that a Fid freed and reallocated during a pop cannot corrupt it.
 	private static class Fids {
-		Fid	avail;
-		int	fidgen = 0;
-		int	inuse = 0;
-		boolean	closing = false;
+		final AtomicLong	avail = new AtomicLong(0);	// count<<32 | number of the first free Fid, or 0
+		volatile AtomicReferenceArray<Fid>	table = new AtomicReferenceArray<Fid>(64);	// Fids by number
+		final AtomicInteger	fidgen = new AtomicInteger(0);
+		final AtomicLong	inuse;
+		final AtomicLong	peak;
+		volatile boolean	closing = false;
+
+		Fids(Stats stats){
+			this.inuse = stats.fids;
+			this.peak = stats.maxfids;
+		}
 
-		synchronized Fid alloc() {
+		final Fid alloc() {
 			Fid f;
-			f = avail;
-			if(f != null){
-				avail = f.next;
-				f.next = null;
-				f.inuse = 1;
-			}else
-				f = new Fid(++fidgen);
-			inuse++;
+			while((f = pop()) != null && !Fid.Refs.compareAndSet(f, -1, 1)){
+				/* skip: not free after all */
+			}
+			if(f == null){
+				f = new Fid(fidgen.incrementAndGet());
+				enter(f);
+			}
+			long n = inuse.incrementAndGet();
+			long m;
+			while(n > (m = peak.get()) && !peak.compareAndSet(m, n)){
+				/* skip */
+			}
 			return f;
 		}
 
-		synchronized void free(Fid f) {
-			if(f != null && f.isfree()){
-				f.next = avail;
-				avail = f;
-				inuse--;
+		// return the Fid in use with number fid, or null: for matching a reply, flush or clunk to its fid without a search
+		final Fid lookup(int fid){
+			AtomicReferenceArray<Fid> t = table;
+			if(fid <= 0 || fid >= t.length())
+				return null;
+			Fid f = t.get(fid);
+			return f != null && f.inuse != -1 ? f : null;	// -1: on the free stack
+		}
+
+		// only the first of racing frees of f puts it on the stack; pushing it twice would corrupt the stack
+		final void free(Fid f) {
+			if(f != null && Fid.Refs.compareAndSet(f, 0, -1)){
+				push(f);
+				inuse.decrementAndGet();
 			}
 		}
 
-		synchronized boolean close(){
-			if(inuse != 0){
-				closing = true;
-				return false;
+		private Fid pop(){
+			long h;
+			Fid f;
+			do{
+				h = avail.get();
+				int n = (int)h;
+				if(n == 0)
+					return null;
+				f = table.get(n);
+			}while(!avail.compareAndSet(h, ((h>>>32)+1)<<32 | (f.next & 0xFFFFFFFFL)));
+			f.next = 0;
+			return f;
+		}
+
+		private void push(Fid f){
+			long h;
+			do{
+				h = avail.get();
+				f.next = (int)h;
+			}while(!avail.compareAndSet(h, ((h>>>32)+1)<<32 | (f.fid & 0xFFFFFFFFL)));
+		}
+
+		// only new numbers need the lock, to grow the table
+		private synchronized void enter(Fid f){
+			AtomicReferenceArray<Fid> t = table;
+			if(f.fid >= t.length()){
+				int n = t.length();
+				while(n <= f.fid)
+					n *= 2;
+				AtomicReferenceArray<Fid> nt = new AtomicReferenceArray<Fid>(n);
+				for(int i = 0; i < t.length(); i++)
+					nt.set(i, t.get(i));
+				t = nt;
 			}
+			t.set(f.fid, f);
+			table = t;
+		}
+
+		// note that the connection should close when the last fid is freed, returning true if it can close now
+		final boolean close(){
+			closing = true;
+			if(inuse.get() != 0)
+				return false;
 			closing = false;
 			return true;
 		}
 
-		synchronized boolean shouldclose(){
-			return inuse == 0 && closing;
+		final boolean shouldclose(){
+			return inuse.get() == 0 && closing;
 		}
 	}
 
-	/**
-	 * Conn represents a 9P connection on a given ByteChannel.
-	 * <p>
-	 * It provides operations to initialise the connection (version), obtain an authentication file (auth),
-	 * attach to the root of a file system offered by the server (attach), and close the connection (close).
-	 * <p>
-	 * A successful attach returns an FS instance allowing operations on files by name.
-	 * Two of those operations, create and open, return an FD instance allowing IO on files.
-	 * Conn's auth operation also returns an FD instance, allowing IO on the resulting authentication file.
-	 * <p>
-	 * None of the operations regard failure as exceptional, and therefore do not throw exceptions.
-	 * Instead they return an error value suitable for the normal return type of the function.
-	 * A per-thread error string contains text giving the diagnostic for the most recent error.
-	 * The function errstr returns the error string.
-	 */
-	public class Conn {
-		ByteChannel	fd;
-		int	msize = 0;
-
-		RQ	writeq = new RQ();	// waiting to be sent to server
-		Requests	active = new Requests();	// sent to server; waiting for reply
-		Fids		fids = new Fids();
-
-		Object	versioning = new Object();	// Tversion queue lock
-		String	versioned;
-
-		boolean asyncflush = false;
-		boolean closed = false;
-		long	optimer = 0;
+	// sequential read-ahead on an FD: Treads already sent for the chunks that follow the caller's last read
+	private static class Readahead {
+		final ReentrantLock	lock = new ReentrantLock();	// not a monitor, which would pin a virtual thread waiting for replies
+		final int	window;	// Treads to keep in flight
+		long	next = -1;	// offset at which a sequential read would start
+		long	sent;	// offset just past the last Tread sent
+		boolean	seq;	// the last read continued its predecessor
+		boolean	eof;	// a short read was seen: stop reading ahead
+		ArrayDeque<Request>	pending = new ArrayDeque<Request>();	// Treads in offset order
+		ByteBuffer	data;	// unconsumed data from the oldest reply, starting at offset next
+		Request	held;	// request whose reply holds data
+		boolean	lent;	// part of data was returned without copying, so its buffer can't be reused
+
+		Readahead(int window){
+			this.window = window;
+		}
 
-		public Conn(ByteChannel fd){
-			this.fd = fd;
-			(new Writer()).start();
-			(new Reader()).start();
+		// note the start of a read, discarding anything read ahead if it does not continue the previous read
+		final void start(long offset){
+			seq = offset == next;
+			if(!seq){
+				reset();
+				next = sent = offset;
+			}
 		}
 
-		/**
-		 * Return the per-thread error string, which gives the error text from the most recent error.
-		 */
-		public String errstr(){
-			return NinepClient.this.errstr();
+		// discard data and abandon outstanding Treads; their replies will be ignored
+		final void reset(){
+			pending.clear();
+			data = null;
+			held = null;
+			eof = false;
+			next = -1;
 		}
 
-		/**
-		 * Set time limit in milliseconds for each 9P operation, until reset to zero.
-		 */
-		public void setTimeLimit(long ms){
-			optimer = ms;
+		// send Treads until the window is full
+		final void fill(FD fd) throws ConnectionFailed, InterruptedIOException {
+			int unit = fd.unit();
+			while(!eof && pending.size() < window){
+				pending.add(fd.conn.rpcsend(ninep.new Tread(fd.fid, sent, unit)));
+				sent += unit;
+			}
 		}
+	}
 
-		/**
-		 * Optionally specify a maximum message size and protocol version.
-		 * By default, the protocol will use messages no larger than Ninep.MAXRPC, and negotiate the version "9P2000".
-		 * The 9P server can negotiate a message size limit that is still smaller.
-		 * <p>
-		 * Version does a 9P Tversion transaction.
-		 *	@param	msize	desired maximum message size in bytes (if 0, use default Ninep.MAXRPC)
-		 *	@param	v		desired protocol version (if null, use Ninep.VERSION, which is "9P2000")
-		 *	@return	protocol version negotiated, or null if the negotiation failed (see the error string)
-		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
-		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
-		 */
-		public String version(int msize, String v) throws ConnectionFailed, InterruptedIOException {
-			if(msize == 0)
-				msize = Ninep.MAXRPC;
-			if(v == null)
-				v = Ninep.VERSION;
-			synchronized(versioning){	// only one Tversion active at once on a connection
-				if(versioned != null)
-					return versioned;	// already done; TO DO: check compatibility
-				Ninep.Rversion r = (Ninep.Rversion)ninepreq(ninep.new Tversion(msize, v));
-				if(r == null)
-					return null;
-				// check compatibility
-				if(r.msize < 256 || r.msize > 1024*1024){
-					werrstr("nonsense value of remote msize in version");
-					return null;
-				}
-				if(r.msize > msize){
-					werrstr("server tries to increase msize in version");
-					return null;
-				}
-				int n = r.version.length();
-				if(!v.substring(0, n).equals(r.version)){
-					werrstr("bad 9P version received from server");
-					return null;
+	// directories walked from the root of an FS, by name, least recently used first;
+	// the cache holds a reference to each directory's fid, dropped (see evicted) when it leaves the cache
+	private static class WalkCache {
+		final int	size;
+		final LinkedHashMap<String, FD>	dirs;
+		final HashSet<String>	walking = new HashSet<String>();	// names being walked, to be added
+		ArrayList<FD>	evicted = new ArrayList<FD>();
+
+		WalkCache(int size){
+			this.size = size;
+			this.dirs = new LinkedHashMap<String, FD>(16, 0.75f, true){
+				protected boolean removeEldestEntry(Map.Entry<String, FD> e){
+					if(size() <= WalkCache.this.size)
+						return false;
+					evicted.add(e.getValue());
+					return true;
 				}
-				this.msize = r.msize;
-				this.versioned = r.version;
-			}
-			return this.versioned;
+			};
 		}
 
-		/**
-		 * Return a FD (file descriptor) that represents a channel to the authentication system on the server.
-		 * If the server requires authentication, a successful auth will return an FD instance that allows an
-		 * auth file on the server to be read and written to exchange authentication data with the server.
-		 * The aim is to authenticate <i>uname</i>'s access to the server's tree <i>aname</i>.
-		 *<p>
-		 * If the server does not require authentication, it will reply with an error, and auth will return null.
-		 * That does not represent a failure to authenticate, but rather that authentication is not required.
-		 *	@param	uname	user name that will authenticate
-		 *	@param	aname	name of server tree; use "" or null to get the default (main) tree
-		 *	@return	an FD instance connected to an authentication file; returns null if the server does not require authentication
-		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
-		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
-		 */
-		public FD auth(String uname, String aname) throws ConnectionFailed, InterruptedIOException {
-			if(versioned == null && version(0, null) == null)
-				return null;
-			FD fd = newfd();
-			Ninep.Rauth r = (Ninep.Rauth)ninepreq(ninep.new Tauth(fd.fid, uname, aname));
-			if(r == null){
-				fd.free();
-				return null;
+		// name of the directory reached by walking els[0..n) from the root
+		static String dirname(String[] els, int n){
+			StringBuilder sb = new StringBuilder(64);
+			for(int i = 0; i < n; i++){
+				sb.append('/');
+				sb.append(els[i]);
 			}
-			fd.qid = r.aqid;
-			fd.mode = Ninep.ORDWR;
-			return fd;
+			return sb.length() == 0 ? "/" : sb.toString();
 		}
 
-		/**
-		 * Attach as user <i>uname</i> to the root of the server's tree <i>aname</i>.
-		 * Return an FS instance giving access to that tree.
-		 * If the server does not require authentication, <i>afd</i> should be null.
-		 * If the server does require authentication, <i>afd</i> must be the result of a previous
-		 * <i>auth</i> call specifying the same <i>uname</i> and <i>aname</i>,
-		 * over which an authentication protocol has been run successfully.
-		 *	@param	afd	file descriptor for authentication file, or null if none is needed
-		 *	@param	uname	user name accessing the file system
-		 *	@param	aname	access the tree with the given name (null or "" for default tree)
-		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
-		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
-		 */
-		public FS attach(FD afd, String uname, String aname) throws ConnectionFailed, InterruptedIOException {
-			if(versioned == null && version(0, null) == null)
-				return null;
-			FD fd = newfd();
-			int afid = Ninep.NOFID;
-			if(afd != null)
-				afid = afd.fid;
-			Ninep.Rattach r = (Ninep.Rattach)ninepreq(ninep.new Tattach(fd.fid, afid, uname, aname));
-			if(r == null){
-				fd.free();
-				return null;
+		// find the deepest cached directory on the path els[0..n), returning its FD with an extra reference to its fid, and its depth in depth[0]
+		synchronized FD lookup(String[] els, int n, int[] depth){
+			for(int i = n; i > 0; i--){
+				FD fd = dirs.get(dirname(els, i));
+				if(fd != null){
+					fd.fidp.incref();
+					depth[0] = i;
+					return fd;
+				}
 			}
-			fd.name = "/";
-			fd.qid = r.qid;
-			return new FS(this, fd);
+			return null;
 		}
 
-		/** On an interrupt, send flush and wait for the reply */
-		synchronized public void waitflush(){
-			asyncflush = false;
+		// note that name will be walked and added, unless it is already in the cache or on the way
+		synchronized boolean start(String name){
+			if(dirs.containsKey(name))
+				return false;
+			return walking.add(name);
 		}
 
-		/** On an interrupt, send flush but do not wait for the reply */
-		synchronized public void quickflush(){
-			asyncflush = true;
+		synchronized void abandon(String name){
+			walking.remove(name);
 		}
 
-		synchronized boolean isasyncflush(){
-			return asyncflush;
+		// add the directory fd, walked to name, returning false if the same directory is already there
+		synchronized boolean put(String name, FD fd){
+			walking.remove(name);
+			FD old = dirs.get(name);
+			if(old != null){
+				if(old.qid.path == fd.qid.path)
+					return false;
+				evicted.add(old);	// the name now refers to a different directory
+			}
+			dirs.put(name, fd);
+			return true;
 		}
 
-		/** Close the 9P connection as soon as its FS and FD instances have all been closed. */
-		synchronized public void close(){
+		// forget name and everything below it
+		synchronized void invalidate(String name){
+			String below = name.endsWith("/") ? name : name+"/";
+			for(Iterator<Map.Entry<String, FD>> it = dirs.entrySet().iterator(); it.hasNext();){
+				Map.Entry<String, FD> e = it.next();
+				if(e.getKey().equals(name) || e.getKey().startsWith(below)){
+					evicted.add(e.getValue());
+					it.remove();
+				}
+			}
+		}
+
+		synchronized void clear(){
+			evicted.addAll(dirs.values());
+			dirs.clear();
+		}
+
+		// return the directories that have left the cache, whose references must be dropped
+		synchronized ArrayList<FD> evicted(){
+			ArrayList<FD> l = evicted;
+			evicted = new ArrayList<FD>();
+			return l;
+		}
+	}
+
+	// attributes of files by name, least recently used first, each kept until it expires or is invalidated
+	private static class StatCache {
+		final int	size;
+		final long	ttl;	// nanoseconds
+		final LinkedHashMap<String, Attr>	attrs;
+		long	gen;	// incremented by each invalidation, so that a stat overlapping a change is not cached
+
+		static class Attr {
+			final Dir	d;
+			final long	expires;
+
+			Attr(Dir d, long expires){
+				this.d = d;
+				this.expires = expires;
+			}
+		}
+
+		StatCache(int size, long ttl){
+			this.size = size;
+			this.ttl = ttl;
+			this.attrs = new LinkedHashMap<String, Attr>(16, 0.75f, true){
+				protected boolean removeEldestEntry(Map.Entry<String, Attr> e){
+					return size() > StatCache.this.size;
+				}
+			};
+		}
+
+		// return a copy of the attributes of name, or null if not cached or expired
+		synchronized Dir get(String name){
+			Attr a = attrs.get(name);
+			if(a == null)
+				return null;
+			if(System.nanoTime()-a.expires >= 0){
+				attrs.remove(name);
+				return null;
+			}
+			return copy(a.d);
+		}
+
+		// the generation before a stat, to give to put
+		synchronized long generation(){
+			return gen;
+		}
+
+		// cache d for name, unless something has been invalidated since generation gen
+		synchronized void put(String name, Dir d, long gen){
+			if(gen != this.gen || d == null)
+				return;
+			attrs.put(name, new Attr(copy(d), System.nanoTime()+ttl));
+		}
+
+		// forget name alone, as when a file is written; stats in flight can still be cached, since they might not overlap the change
+		synchronized void remove(String name){
+			attrs.remove(name);
+		}
+
+		// forget name and everything below it, as when a directory is removed or renamed
+		synchronized void invalidate(String name){
+			gen++;
+			String below = name.endsWith("/") ? name : name+"/";
+			for(Iterator<String> it = attrs.keySet().iterator(); it.hasNext();){
+				String k = it.next();
+				if(k.equals(name) || k.startsWith(below))
+					it.remove();
+			}
+		}
+
+		static String childname(String dir, String elem){
+			if(dir.endsWith("/"))
+				return dir+elem;
+			return dir+"/"+elem;
+		}
+
+		static String parentname(String name){
+			int i = name.lastIndexOf('/');
+			if(i <= 0)
+				return "/";
+			return name.substring(0, i);
+		}
+
+		// callers can change the Dir they are given, so the cache keeps its own
+		static Dir copy(Dir d){
+			Dir c = new Dir(d.name, d.qid, d.length, d.mode);
+			c.uid = d.uid;
+			c.gid = d.gid;
+			c.muid = d.muid;
+			c.atime = d.atime;
+			c.mtime = d.mtime;
+			c.dtype = d.dtype;
+			c.dev = d.dev;
+			return c;
+		}
+	}
+
+	// the entries of a directory, read a batch at a time, each decoded only when the caller gets to it;
+	// the read for the next batch is sent as soon as the current one arrives (a directory can only be read
+	// at the offset where the last read ended, so that is the only read that can be in flight)
+	private static class DirIterator implements Iterator<Dir> {
+		final FD	fd;
+		final int	unit;
+		final StatCache	sc;	// non-null: add the entries to the FS's stat cache
+		final long	gen;
+		Request	batch;	// the reply holding the entries now being returned
+		final Ninep.DirView	view = new Ninep.DirView();	// cursor over batch's entries
+		boolean	viewing;	// view has entries not yet visited
+		Request	next;	// read in flight, or null at the end of the directory
+		Dir	dir;	// the next entry, if already decoded
+
+		DirIterator(FD fd, int unit) throws IOException {
+			this.fd = fd;
+			this.unit = unit;
+			this.sc = fd.name != null ? fd.attrs : null;
+			this.gen = sc != null ? sc.generation() : 0;
+			this.next = send();
+		}
+
+		private Request send() throws IOException {
+			long off;
+			synchronized(fd){ off = fd.offset; }
+			return fd.conn.rpcsend(ninep.new Tread(fd.fid, off, unit));
+		}
+
+		// collect the read in flight and send the next, returning false at the end of the directory
+		private boolean fetch() throws IOException {
+			if(next == null)
+				return false;
+			Request req = next;
+			next = null;
+			Ninep.Rread r = (Ninep.Rread)fd.conn.rpcwait(req);
+			if(r == null)
+				ioerror();
+			int n = r.data.remaining();
+			if(batch != null)
+				fd.conn.release(batch);	// its entries have been decoded
+			batch = req;
+			view.wrap(r.data);
+			viewing = true;
+			if(n == 0)
+				return false;
+			synchronized(fd){ fd.offset += n; }
+			next = send();
+			return true;
+		}
+
+		public boolean hasNext(){
+			while(dir == null){
+				if(viewing){
+					try{
+						if(view.next()){
+							dir = view.dir();
+							if(sc != null && dir.name != null && dir.name.length() != 0)
+								sc.put(StatCache.childname(fd.name, dir.name), dir, gen);
+							break;
+						}
+					}catch(Ninep.FormatError e){
+						/* server error? skip the rest of the batch */
+					}
+					viewing = false;
+				}
+				try{
+					if(!fetch())
+						return false;
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			}
+			return true;
+		}
+
+		public Dir next(){
+			if(!hasNext())
+				throw new NoSuchElementException();
+			Dir d = dir;
+			dir = null;
+			return d;
+		}
+
+		// the caller has finished, perhaps early: collect the read in flight
+		void close(){
+			viewing = false;
+			if(batch != null){
+				fd.conn.release(batch);
+				batch = null;
+			}
+			if(next != null){
+				try{
+					fd.conn.rpcwait(next);
+				}catch(IOException e){
+					/* no longer of interest */
+				}
+				fd.conn.release(next);
+				next = null;
+			}
+		}
+	}
+
+	// write-behind on an FD: Twrites sent but not yet answered, oldest first
+	private static class Writebehind {
+		final ReentrantLock	lock = new ReentrantLock();	// not a monitor, which would pin a virtual thread waiting for replies
+		final int	window;	// Twrites to keep in flight
+		ArrayDeque<Request>	pending = new ArrayDeque<Request>();
+		ArrayDeque<Boolean>	advanced = new ArrayDeque<Boolean>();	// corresponding write moved the file offset
+		String	err;	// error or short write not yet reported
+
+		Writebehind(int window){
+			this.window = window;
+		}
+
+		// collect the reply to the oldest Twrite, recording the first failure;
+		// after a failure, the file offset is left just past the last byte known to be written
+		final void retire(FD fd) throws ConnectionFailed, InterruptedIOException {
+			Request req = pending.remove();
+			boolean adv = advanced.remove();
+			Ninep.Twrite t = (Ninep.Twrite)req.t;
+			int nreq = t.data.limit();
+			Ninep.Rwrite r = (Ninep.Rwrite)fd.conn.rpcwait(req);
+			fd.conn.release(req);
+			fd.changed();
+			int nr = r != null ? r.count : 0;
+			if(nr >= nreq || err != null)
+				return;
+			err = r == null ? errstr() : "short write";
+			if(adv){
+				synchronized(fd){ fd.offset = t.offset+nr; }
+			}
+		}
+
+		// collect all outstanding replies
+		final void drain(FD fd) throws ConnectionFailed, InterruptedIOException {
+			while(!pending.isEmpty())
+				retire(fd);
+		}
+
+		// report a failure not yet reported
+		final void check() throws IOException {
+			String e = err;
+			if(e != null){
+				err = null;
+				ioerror(e);
+			}
+		}
+	}
+
+	/**
+	 * DirScanner receives the entries found by {@link NinepClient.FD#dirscan}, as views of the data read.
+	 */
+	public interface DirScanner {
+		/**
+		 * Examine the entry under the cursor <i>d</i>, returning true to go on to the next entry, or false to stop the scan.
+		 * The cursor, and the buffer it views, are reused once scan returns, so anything to be kept must be copied out
+		 * (for instance by {@link Ninep.DirView#dir}).
+		 * An exception stops the scan, and is thrown by dirscan.
+		 */
+		boolean scan(Ninep.DirView d) throws IOException;
+	}
+
+	/**
+	 * TreeVisitor receives the entries found by {@link NinepClient.FS#walkTree}.
+	 * Its methods are called concurrently by the threads of the walk.
+	 */
+	public interface TreeVisitor {
+		/**
+		 * Visit the entry <i>d</i>, with full name <i>name</i>, <i>depth</i> levels below the root of the walk
+		 * (the entries of the root directory itself are at depth 1).
+		 * For a directory, return true to walk its contents, or false to prune it; the result is ignored for other files.
+		 * An exception stops the walk, and is thrown by walkTree.
+		 */
+		boolean visit(String name, Dir d, int depth) throws IOException;
+
+		/**
+		 * Note that the directory <i>name</i> could not be opened or read, for the reason <i>err</i>; the walk goes on.
+		 */
+		void failed(String name, String err);
+	}
+
+	/**
+	 * Engine serves many Conns with a few threads, instead of the reader and writer threads each Conn otherwise has.
+	 * <p>
+	 * Each engine thread runs a Selector over the sockets of the connections given to it (see {@link NinepClient.Conn#Conn(SocketChannel, Engine)}),
+	 * which are dealt to the threads in turn. The thread reads whatever replies have arrived, frames them,
+	 * and answers the waiting requests just as a reader thread does, and it sends queued requests as far as each socket
+	 * will take them without blocking, finishing when the socket is writable again.
+	 * A client with thousands of mounts therefore needs only as many threads as the engine has, not two for each mount.
+	 * <p>
+	 * Callers still wait for replies in the usual way; only the connections' own threads are replaced.
+	 */
+	public static class Engine {
+		private final EngineLoop[]	loops;
+		private final AtomicInteger	next = new AtomicInteger();
+
+		/**
+		 * Create an engine with <i>nthreads</i> platform daemon threads.
+		 * @throws	IOException	if a Selector cannot be opened
+		 */
+		public Engine(int nthreads) throws IOException {
+			this(nthreads, null);
+		}
+
+		/**
+		 * Create an engine with <i>nthreads</i> threads made by <i>threads</i>, or platform daemon threads if <i>threads</i> is null.
+		 * @throws	IOException	if a Selector cannot be opened
+		 */
+		public Engine(int nthreads, ThreadFactory threads) throws IOException {
+			if(nthreads <= 0)
+				throw new IllegalArgumentException("Engine needs at least one thread");
+			loops = new EngineLoop[nthreads];
+			try{
+				for(int i = 0; i < nthreads; i++)
+					loops[i] = new EngineLoop();
+			}catch(IOException e){
+				close();
+				throw e;
+			}
+			for(EngineLoop l : loops){
+				Thread t;
+				if(threads != null)
+					t = threads.newThread(l);
+				else{
+					t = new Thread(l);
+					t.setDaemon(true);
+				}
+				Misc.nominate(t, Engine.class);
+				l.thread = t;
+				t.start();
+			}
+		}
+
+		/** Return the number of threads */
+		public int threads(){
+			return loops.length;
+		}
+
+		final EngineLoop pick(){
+			return loops[(next.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+		}
+
+		/**
+		 * Stop the engine's threads, shutting down the connections they serve.
+		 */
+		public void close(){
+			for(EngineLoop l : loops)
+				if(l != null)
+					l.close();
+		}
+	}
+
+	// one of an Engine's threads, and the Selector over its connections' sockets
+	private static class EngineLoop implements Runnable {
+		final Selector	selector;
+		final ConcurrentLinkedQueue<Conn.Port>	pending = new ConcurrentLinkedQueue<Conn.Port>();	// woken ports
+		volatile Thread	thread;
+		volatile boolean	closing;
+
+		EngineLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		public final void run(){
+			String err = "9P engine closed";
+			try{
+				while(!closing){
+					selector.select();
+					Conn.Port p;
+					while((p = pending.poll()) != null){
+						try{
+							p.service();
+						}catch(CancelledKeyException e){
+							p.teardown(Ehungup);
+						}
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey k = it.next();
+						it.remove();
+						p = (Conn.Port)k.attachment();
+						try{
+							if(k.isReadable())
+								p.readable();
+							if(k.isValid() && k.isWritable())
+								p.flush();
+						}catch(CancelledKeyException e){
+							p.teardown(Ehungup);
+						}
+					}
+				}
+			}catch(IOException e){
+				err = "9P engine failed: "+e;
+			}catch(ClosedSelectorException e){
+				// closed
+			}
+			for(SelectionKey k : selector.keys())
+				((Conn.Port)k.attachment()).teardown(err);
+			Conn.Port p;
+			while((p = pending.poll()) != null)
+				p.teardown(err);
+			try{
+				selector.close();
+			}catch(IOException e){
+				// we don't care
+			}
+			if(log.tracing())
+				log.trace("Engine exit: "+err);
+		}
+
+		final void close(){
+			closing = true;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Stats counts events on a 9P connection, for monitoring. See {@link NinepClient.Conn#stats}.
+	 * Counts are cumulative from the creation of the connection, and are updated without locking,
+	 * so a set of values read together is only approximately consistent.
+	 */
+	public static class Stats {
+		final AtomicLong	writes = new AtomicLong();
+		final AtomicLong	messages = new AtomicLong();
+		final AtomicLong	batches = new AtomicLong();
+		final AtomicLong	maxbatch = new AtomicLong();
+		final AtomicLong	walkhits = new AtomicLong();
+		final AtomicLong	walkmisses = new AtomicLong();
+		final AtomicLong	walkevictions = new AtomicLong();
+		final AtomicLong	stathits = new AtomicLong();
+		final AtomicLong	statmisses = new AtomicLong();
+		final AtomicLong	clunks = new AtomicLong();
+		final AtomicLong	clunkerrors = new AtomicLong();
+		final AtomicLong	fids = new AtomicLong();
+		final AtomicLong	maxfids = new AtomicLong();
+
+		Stats(){}
+
+		final void wrote(int nmsg){
+			writes.incrementAndGet();
+			messages.addAndGet(nmsg);
+			if(nmsg > 1){
+				batches.incrementAndGet();
+				long m;
+				while(nmsg > (m = maxbatch.get()) && !maxbatch.compareAndSet(m, nmsg)){
+					/* skip */
+				}
+			}
+		}
+
+		/** Return the number of writes to the connection's channel */
+		public long writes(){ return writes.get(); }
+
+		/** Return the number of 9P messages sent */
+		public long messages(){ return messages.get(); }
+
+		/** Return the number of writes that sent more than one message */
+		public long batches(){ return batches.get(); }
+
+		/** Return the largest number of messages sent by one write */
+		public long maxBatch(){ return maxbatch.get(); }
+
+		/** Return the number of writes saved by sending several messages at once */
+		public long writesSaved(){ return messages.get()-writes.get(); }
+
+		/** Return the number of walks that started from a directory in a walk cache (see {@link NinepClient.FS#setWalkCache}) */
+		public long walkCacheHits(){ return walkhits.get(); }
+
+		/** Return the number of walks that could have used a walk cache but found nothing on their path */
+		public long walkCacheMisses(){ return walkmisses.get(); }
+
+		/** Return the number of directories dropped from walk caches, when full or invalidated */
+		public long walkCacheEvictions(){ return walkevictions.get(); }
+
+		/** Return the number of stats answered from a stat cache (see {@link NinepClient.FS#setStatCache}) */
+		public long statCacheHits(){ return stathits.get(); }
+
+		/** Return the number of stats that could have used a stat cache but had to ask the server */
+		public long statCacheMisses(){ return statmisses.get(); }
+
+		/** Return the number of FD closes that clunked without waiting (see {@link NinepClient.Conn#setAsyncClunk}) */
+		public long asyncClunks(){ return clunks.get(); }
+
+		/** Return the number of those clunks that the server rejected, or that could not be sent */
+		public long asyncClunkErrors(){ return clunkerrors.get(); }
+
+		/** Return the number of fids now in use */
+		public long liveFids(){ return fids.get(); }
+
+		/** Return the largest number of fids in use at once */
+		public long peakFids(){ return maxfids.get(); }
+
+		/** Return the fraction of stats answered from a stat cache, or 0 if none could have been */
+		public double statCacheHitRate(){
+			long h = stathits.get();
+			long t = h+statmisses.get();
+			return t == 0 ? 0.0 : (double)h/t;
+		}
+	}
+
+	/**
+	 * Conn represents a 9P connection on a given ByteChannel.
+	 * <p>
+	 * It provides operations to initialise the connection (version), obtain an authentication file (auth),
+	 * attach to the root of a file system offered by the server (attach), and close the connection (close).
+	 * <p>
+	 * A successful attach returns an FS instance allowing operations on files by name.
+	 * Two of those operations, create and open, return an FD instance allowing IO on files.
+	 * Conn's auth operation also returns an FD instance, allowing IO on the resulting authentication file.
+	 * <p>
+	 * None of the operations regard failure as exceptional, and therefore do not throw exceptions.
+	 * Instead they return an error value suitable for the normal return type of the function.
+	 * A per-thread error string contains text giving the diagnostic for the most recent error.
+	 * The function errstr returns the error string.
+	 */
+	public class Conn {
+		ByteChannel	fd;
+		int	msize = 0;
+
+		Tags	tags = new Tags();	// this connection's tag space
+		RQ	writeq = new RQ();	// waiting to be sent to server
+		Requests	active = new Requests(tags);	// sent to server; waiting for reply
+		final Stats	stats = new Stats();
+		Fids		fids = new Fids(stats);
+		volatile Buffers	buffers = new Buffers(Math.max(Ninep.MAXRPC, Writebatch), false);	// replaced when msize is agreed
+		boolean	directbufs = false;
+
+		Object	versioning = new Object();	// Tversion queue lock
+		String	versioned;
+
+		boolean asyncflush = false;
+		boolean closed = false;
+		long	optimer = 0;
+		volatile Semaphore	slots;	// if not null, limits the requests outstanding
+		volatile boolean	asyncclunk;	// FD.close does not wait for Rclunk
+		final Thread	writer;
+		final Thread	reader;
+		final Port	port;	// non-null: served by an Engine, instead of writer and reader
+
+		public Conn(ByteChannel fd){
+			this(fd, (ThreadFactory)null);
+		}
+
+		/**
+		 * Create a 9P connection on <i>fd</i> whose reader and writer loops run on threads made by <i>threads</i>,
+		 * for instance the factory returned by {@link NinepClient#virtualThreads}.
+		 * If <i>threads</i> is null, each loop runs on its own platform daemon thread.
+		 */
+		public Conn(ByteChannel fd, ThreadFactory threads){
+			this.fd = fd;
+			writer = start(new Writer(), threads);
+			reader = start(new Reader(), threads);
+			port = null;
+		}
+
+		/**
+		 * Create a 9P connection on the socket <i>fd</i>, served by one of the threads of <i>engine</i>
+		 * instead of a reader and writer thread of its own. The socket is put in non-blocking mode.
+		 * As with the reader thread, the engine's thread completes asynchronous requests, and their dependent actions must not block.
+		 * @throws	IOException	if the socket cannot be made non-blocking, for instance because it is closed
+		 */
+		public Conn(SocketChannel fd, Engine engine) throws IOException {
+			fd.configureBlocking(false);
+			this.fd = fd;
+			writer = null;
+			reader = null;
+			port = new Port(fd, engine.pick());
+			writeq.wake = port;
+			port.run();	// to register the channel
+		}
+
+		private Thread start(Runnable r, ThreadFactory threads){
+			Thread t;
+			if(threads != null)
+				t = threads.newThread(r);
+			else{
+				t = new Thread(r);
+				t.setDaemon(true);
+			}
+			Misc.nominate(t, r.getClass());
+			t.start();
+			return t;
+		}
+
+		/**
+		 * Return the per-thread error string, which gives the error text from the most recent error.
+		 */
+		public String errstr(){
+			return NinepClient.this.errstr();
+		}
+
+		/**
+		 * Return the counters of activity on this connection.
+		 */
+		public Stats stats(){
+			return stats;
+		}
+
+		/**
+		 * Use direct ByteBuffers for messages to and from the server, which can save a copy in the channel's IO.
+		 * The choice takes effect when the message size is agreed by {@link #version}, and so must be made before that,
+		 * and before auth or attach, which call version implicitly.
+		 * Note that ByteBuffers returned by FD's read operations will then be direct, and have no backing array.
+		 */
+		public void setDirectBuffers(boolean on){
+			directbufs = on;
+		}
+
+		/**
+		 * Allow at most <i>n</i> requests to be outstanding on the connection at once; a thread making another request
+		 * waits until a reply arrives. If <i>n</i> is zero, there is no limit, which is the default.
+		 * Tflush and Tclunk requests are not limited, nor are requests made by actions run as replies arrive (see {@link #ninepreqAsync}).
+		 */
+		public void setMaxOutstanding(int n){
+			slots = n > 0 ? new Semaphore(n) : null;
+		}
+
+		/**
+		 * Enable or disable asynchronous clunks.
+		 * <p>
+		 * When enabled, {@link NinepClient.FD#close} sends the Tclunk and returns without waiting for the reply.
+		 * The fid is not reused until the reply arrives. A clunk cannot usefully fail, but the number sent and rejected
+		 * are counted in the connection's {@link #stats}. Pending write-behind is still completed by close, so that its errors
+		 * can be reported.
+		 */
+		public void setAsyncClunk(boolean on){
+			asyncclunk = on;
+		}
+
+		/**
+		 * Set time limit in milliseconds for each 9P operation, until reset to zero.
+		 */
+		public void setTimeLimit(long ms){
+			optimer = ms;
+		}
+
+		/**
+		 * Optionally specify a maximum message size and protocol version.
+		 * By default, the protocol will use messages no larger than Ninep.MAXRPC, and negotiate the version "9P2000".
+		 * The 9P server can negotiate a message size limit that is still smaller.
+		 * <p>
+		 * Version does a 9P Tversion transaction.
+		 *	@param	msize	desired maximum message size in bytes (if 0, use default Ninep.MAXRPC)
+		 *	@param	v		desired protocol version (if null, use Ninep.VERSION, which is "9P2000")
+		 *	@return	protocol version negotiated, or null if the negotiation failed (see the error string)
+		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
+		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
+		 */
+		public String version(int msize, String v) throws ConnectionFailed, InterruptedIOException {
+			if(msize == 0)
+				msize = Ninep.MAXRPC;
+			if(v == null)
+				v = Ninep.VERSION;
+			synchronized(versioning){	// only one Tversion active at once on a connection
+				if(versioned != null)
+					return versioned;	// already done; TO DO: check compatibility
+				Ninep.Rversion r = (Ninep.Rversion)ninepreq(ninep.new Tversion(msize, v));
+				if(r == null)
+					return null;
+				// check compatibility
+				if(r.msize < 256 || r.msize > 1024*1024){
+					werrstr("nonsense value of remote msize in version");
+					return null;
+				}
+				if(r.msize > msize){
+					werrstr("server tries to increase msize in version");
+					return null;
+				}
+				int n = r.version.length();
+				if(!v.substring(0, n).equals(r.version)){
+					werrstr("bad 9P version received from server");
+					return null;
+				}
+				this.msize = r.msize;
+				this.buffers = new Buffers(Math.max(r.msize, Writebatch), directbufs);
+				this.versioned = r.version;
+			}
+			return this.versioned;
+		}
+
+		/**
+		 * Return a FD (file descriptor) that represents a channel to the authentication system on the server.
+		 * If the server requires authentication, a successful auth will return an FD instance that allows an
+		 * auth file on the server to be read and written to exchange authentication data with the server.
+		 * The aim is to authenticate <i>uname</i>'s access to the server's tree <i>aname</i>.
+		 *<p>
+		 * If the server does not require authentication, it will reply with an error, and auth will return null.
+		 * That does not represent a failure to authenticate, but rather that authentication is not required.
+		 *	@param	uname	user name that will authenticate
+		 *	@param	aname	name of server tree; use "" or null to get the default (main) tree
+		 *	@return	an FD instance connected to an authentication file; returns null if the server does not require authentication
+		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
+		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
+		 */
+		public FD auth(String uname, String aname) throws ConnectionFailed, InterruptedIOException {
+			if(versioned == null && version(0, null) == null)
+				return null;
+			FD fd = newfd();
+			Ninep.Rauth r = (Ninep.Rauth)ninepreq(ninep.new Tauth(fd.fid, uname, aname));
+			if(r == null){
+				fd.free();
+				return null;
+			}
+			fd.qid = r.aqid;
+			fd.mode = Ninep.ORDWR;
+			return fd;
+		}
+
+		/**
+		 * Attach as user <i>uname</i> to the root of the server's tree <i>aname</i>.
+		 * Return an FS instance giving access to that tree.
+		 * If the server does not require authentication, <i>afd</i> should be null.
+		 * If the server does require authentication, <i>afd</i> must be the result of a previous
+		 * <i>auth</i> call specifying the same <i>uname</i> and <i>aname</i>,
+		 * over which an authentication protocol has been run successfully.
+		 *	@param	afd	file descriptor for authentication file, or null if none is needed
+		 *	@param	uname	user name accessing the file system
+		 *	@param	aname	access the tree with the given name (null or "" for default tree)
+		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
+		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
+		 */
+		public FS attach(FD afd, String uname, String aname) throws ConnectionFailed, InterruptedIOException {
+			if(versioned == null && version(0, null) == null)
+				return null;
+			FD fd = newfd();
+			int afid = Ninep.NOFID;
+			if(afd != null)
+				afid = afd.fid;
+			Ninep.Rattach r = (Ninep.Rattach)ninepreq(ninep.new Tattach(fd.fid, afid, uname, aname));
+			if(r == null){
+				fd.free();
+				return null;
+			}
+			fd.name = "/";
+			fd.qid = r.qid;
+			return new FS(this, fd);
+		}
+
+		/** On an interrupt, send flush and wait for the reply */
+		synchronized public void waitflush(){
+			asyncflush = false;
+		}
+
+		/** On an interrupt, send flush but do not wait for the reply */
+		synchronized public void quickflush(){
+			asyncflush = true;
+		}
+
+		synchronized boolean isasyncflush(){
+			return asyncflush;
+		}
+
+		/** Close the 9P connection as soon as its FS and FD instances have all been closed. */
+		synchronized public void close(){
 			if(!closed){
 				if(fids == null)
 					return;	// already done
@@ -564,18 +1572,85 @@ public class NinepClient {
 		}
 
 		protected Ninep.Rmsg ninepreq(Ninep.Tmsg f) throws ConnectionFailed, InterruptedIOException {
-			int otype = f.mtype();
+			return rpcwait(rpcsend(f));
+		}
+
+		// queue a request for the server without waiting for its reply, which rpcwait collects;
+		// several requests can be outstanding at once, and a request that is never collected is harmless
+		final Request rpcsend(Ninep.Tmsg f) throws ConnectionFailed, InterruptedIOException {
+			return rpcsend(f, null);
+		}
+
+		// queue a request, calling then.replied when its reply arrives
+		final Request rpcsend(Ninep.Tmsg f, Reply then) throws ConnectionFailed, InterruptedIOException {
 			Request req = new Request(f);
-			boolean flushing = false;
+			req.then = then;
+			return rpcsend(req);
+		}
+
+		// queue a request already made
+		final Request rpcsend(Request req) throws ConnectionFailed, InterruptedIOException {
 			if(optimer != 0)
 				req.timelimit(optimer);
+			takeslot(req);
+			try{
+				/* channel must not be non-blocking (short writes) */
+				writeq.put(req);
+			}catch(InterruptedIOException e){
+				req.freeslot();
+				throw e;
+			}catch(IOException e){	// anything else is fatal
+				req.freeslot();
+				flushout(req);
+				werrstr("i/o error: "+e);
+				active.shutdown(errstr());
+				throw new ConnectionFailed(errstr(), e);
+			}
+			return req;
+		}
+
+		// wait for room for req if outstanding requests are limited; the reader and writer (or engine)
+		// must never wait, nor flushes and clunks, which release resources
+		private void takeslot(Request req) throws InterruptedIOException {
+			Semaphore s = slots;
+			if(s == null || req.t instanceof Ninep.Tflush || req.t instanceof Ninep.Tclunk)
+				return;
+			Thread me = Thread.currentThread();
+			if(me == reader || me == writer || port != null && me == port.loop.thread)
+				return;
+			try{
+				s.acquire();
+			}catch(InterruptedException e){
+				interrupted();
+			}
+			req.slot = s;
+		}
+
+		// wait for the reply to a request sent by rpcsend, flushing it if interrupted
+		final Ninep.Rmsg rpcwait(Request req) throws ConnectionFailed, InterruptedIOException {
+			boolean ok = false;
+			try{
+				Ninep.Rmsg r = awaitrpc(req);
+				ok = true;
+				return r;
+			}finally{
+				if(!ok)
+					req.abandondest();	// a late Rread must not put data in dest after the caller has gone
+			}
+		}
+
+		private Ninep.Rmsg awaitrpc(Request req) throws ConnectionFailed, InterruptedIOException {
+			Ninep.Tmsg f = req.t;
+			int otype = f.mtype();
+			boolean flushing = false;
 		Work:
 			for(;;){
 				try{
-					/* channel must not be non-blocking (short writes) */
-					writeq.put(req);
-					if(flushing && isasyncflush())
-						interrupted();
+					if(flushing){
+						writeq.put(req);
+						if(isasyncflush())
+							interrupted();
+					}
 					req.awaitreply();
 					break Work;
 				}catch(InterruptedException e){
@@ -617,7 +1692,77 @@ public class NinepClient {
 				werrstr("mismatched 9P reply");
 				return null;
 			}
-			return r;
+			return r;
+		}
+
+		/**
+		 * Send a 9P request and return a future for its reply, without waiting.
+		 * <p>
+		 * The request shares the connection with blocking requests, and any number can be outstanding at once, unless limited by {@link #setMaxOutstanding}.
+		 * The future completes with the reply message, or exceptionally: with {@link ConnectionFailed} if the connection fails,
+		 * and with an IOException giving the server's diagnostic if the server replies with an error.
+		 * Cancelling the future flushes the request, much as interrupting a blocking request does.
+		 * The time limit set by setTimeLimit does not apply.
+		 * <p>
+		 * The future is completed by the thread that reads the connection, as are any dependent actions
+		 * that are not themselves asynchronous; those actions must not block.
+		 *	@param	f	the request
+		 *	@return	a future for the reply
+		 */
+		public CompletableFuture<Ninep.Rmsg> ninepreqAsync(Ninep.Tmsg f){
+			RPC rpc = new RPC(f);
+			try{
+				rpc.req = rpcsend(f, rpc);
+			}catch(IOException e){
+				rpc.completeExceptionally(e);
+			}
+			return rpc;
+		}
+
+		// a 9P request whose reply completes a future; cancelling the future flushes the request
+		private class RPC extends CompletableFuture<Ninep.Rmsg> implements Reply {
+			final int	otype;
+			volatile Request	req;
+
+			RPC(Ninep.Tmsg f){
+				otype = f.mtype();
+			}
+
+			public void replied(Request req){
+				Ninep.Rmsg r = req.r;
+				if(r instanceof Ninep.Rerror){
+					Ninep.Rerror re = (Ninep.Rerror)r;
+					if(re.hangup)
+						completeExceptionally(new ConnectionFailed(re.ename));
+					else
+						completeExceptionally(new IOException(re.ename));
+				}else if(r instanceof Ninep.Rflush)
+					completeExceptionally(new CancellationException(Eintr));
+				else if(r.mtype() != otype+1)
+					completeExceptionally(new IOException("mismatched 9P reply"));
+				else
+					complete(r);
+			}
+
+			public boolean cancel(boolean interrupt){
+				if(!super.cancel(interrupt))
+					return false;
+				Request req = this.req;
+				if(req != null && req.r == null)
+					flushasync(req);
+				return true;
+			}
+		}
+
+		// send a flush for req without waiting; when it is answered, req is answered too
+		private void flushasync(final Request req){
+			if(req.t.tag == Ninep.NOTAG)
+				return;	// not yet sent: its reply will be ignored
+			try{
+				rpcsend(ninep.new Tflush(req.t.tag), f -> active.flushed(req));
+			}catch(IOException e){
+				// connection is failing, and will answer req
+			}
 		}
 
 		// dispose of unanswered messages in a chain of flushes
@@ -625,11 +1770,8 @@ public class NinepClient {
 			// we can't lock req because active.completed might do so indirectly via replied, but it
 			// doesn't matter, because the current process is the only one working with req.flushed
 			for(;;){
-				if(req.r == null){
-					// build flush request with tag matching original request
-					Ninep.Rmsg flush = ninep.new Rflush(req.t.tag);
-					active.completed(flush);
-				}
+				if(req.r == null)
+					active.flushed(req);	// answer with Rflush, if still outstanding
 				if(req.flushed == null)
 					break;
 				req = req.flushed;
@@ -641,8 +1783,15 @@ public class NinepClient {
 				throw new RuntimeException("programming error: NinepClient used after shutdown");
 			return new FD(this, fids.alloc());
 		}
+		// return the fid in use with number fid, or null
+		final Fid fid(int fid){
+			Fids fids = this.fids;
+			return fids != null ? fids.lookup(fid) : null;
+		}
+
 		protected final void freefid(Fid fidp){
-			if(fidp != null){
+			Fids fids = this.fids;
+			if(fidp != null && fids != null){
 				fids.free(fidp);
 				if(fids.shouldclose())
 					close();
@@ -656,51 +1805,76 @@ public class NinepClient {
 		 *	the channel on the interrupt!
 		 */
 
-		private class Reader extends Thread {
-			Reader(){
-				setDaemon(true);
-				Misc.nominate(this);
-			}
+		private class Reader implements Runnable {
 			private final void fillbuf(ByteChannel fd, ByteBuffer b) throws IOException {
 				while(b.remaining() > 0 && fd.read(b) > 0){
 					/* skip */
 				}
-				b.flip();
-				if(b.remaining() != b.capacity())
+				if(b.remaining() != 0)
 					throw new IOException("Ninep message truncated");
+				b.flip();
 			}
 			public final void run(){
+				final int H = Ninep.BIT32SZ+Ninep.BIT8SZ+Ninep.BIT16SZ;	// size[4] type[1] tag[2]
 				try{
 					Ninep.Unpack unpacker = ninep.new Unpack();
-					ByteBuffer sizeb = ByteBuffer.allocate(Ninep.BIT32SZ);
+					Ninep.RView view = new Ninep.RView();
+					ByteBuffer hdr = ByteBuffer.allocate(H+Ninep.BIT32SZ);	// header, and Rread's count[4]
 					for(;;){
 						int msglim = msize;
 						if(msglim == 0)
 							msglim = Ninep.MAXRPC;
-						fillbuf(fd, sizeb);
-						int ml = (int)sizeb.get() & 0xFF;
-						ml |= ((int)sizeb.get() & 0xFF) << 8;
-						ml |= ((int)sizeb.get() & 0xFF) << 16;
-						ml |= ((int)sizeb.get() & 0xFF) << 24;
-						sizeb.clear();
+						hdr.clear();
+						hdr.limit(H);
+						fillbuf(fd, hdr);
+						view.wrap(hdr);
+						int ml = view.size();
+						int type = view.type();
+						int tag = view.tag();
 						if(ml > msglim){
-							active.shutdown(String.format("9P message longer than agreed: %d > %d [%s ...]", ml, msglim));
+							active.shutdown(String.format("9P message longer than agreed: %d > %d", ml, msglim));
 							return;
 						}
-						if((ml -= Ninep.BIT32SZ) <= 0){
+						if(ml < H){
 							active.shutdown("invalid 9P message size");
 							return;
 						}
-						ByteBuffer b = ByteBuffer.allocate(ml);
-						fillbuf(fd, b);
-						try{
-							Ninep.Rmsg r = unpacker.unpackR(b);
-							if(log.tracing())
-								log.trace("<- %s", r);
-							active.completed(r);
-						}catch(Ninep.FormatError e){
-							active.diagnose("can't unpack: bad 9P type or format");
+						if(type == Ninep.MRread && ml >= H+Ninep.BIT32SZ){
+							// if the caller gave a destination, read the data straight into it
+							Request req = active.get(tag);
+							ByteBuffer dest = req != null ? req.dest : null;
+							if(dest != null && req.claimdest()){
+								Ninep.Rread r = null;
+								try{
+									hdr.position(H);
+									hdr.limit(H+Ninep.BIT32SZ);
+									fillbuf(fd, hdr);
+									int count = view.count();
+									if(count == ml-H-Ninep.BIT32SZ && count <= dest.remaining()){
+										ByteBuffer data = dest.slice();
+										data.limit(count);
+										fillbuf(fd, data);
+										r = ninep.new Rread(tag, data);
+										req.inplace = true;
+									}
+								}finally{
+									req.releasedest();
+								}
+								if(r != null){
+									if(log.tracing())
+										log.trace("<- %s", r);
+									active.completed(r, null);
+									continue;
+								}
+								// otherwise unpack it as usual, below, to diagnose it
+							}
 						}
+						Buffers pool = buffers;
+						ByteBuffer b = pool.get(ml-Ninep.BIT32SZ);
+						hdr.position(Ninep.BIT32SZ);	// type, tag and any count remain, to be unpacked
+						b.put(hdr);
+						fillbuf(fd, b);
+						dispatch(unpacker, pool, b);
 					}
 				}catch(EOFException e){
 					active.shutdown(Ehungup);
@@ -712,116 +1886,883 @@ public class NinepClient {
 			}
 		}
 
-		ByteBuffer packmsg(Ninep.Tmsg f) throws IOException {
-			int otype = f.mtype();
-			int tag;
-			if(otype == Ninep.MTversion)
-				f.tag = Ninep.NOTAG;
-			else if((tag = gettag()) != Ninep.NOTAG)
-				f.tag = tag;
-			else
-				throw new IOException("out of 9P message tags");	// unlikely: there are 2^16-2
-			int size = f.packedsize();
-			ByteBuffer buf = ByteBuffer.allocate(size);
-			f.packsize(buf, size);
-			f.pack(buf);
-			buf.flip();
-			return buf;
+		// unpack the reply in b, a buffer from pool holding all but its size[4], and answer the request waiting for it
+		private void dispatch(Ninep.Unpack unpacker, Buffers pool, ByteBuffer b){
+			try{
+				Ninep.Rmsg r = unpacker.unpackR(b);
+				if(log.tracing())
+					log.trace("<- %s", r);
+				// Rread's data refers to b, which goes with it; all other replies are copied out of b
+				if(r instanceof Ninep.Rread){
+					if(!active.completed(r, b))
+						pool.put(b);
+				}else{
+					active.completed(r, null);
+					pool.put(b);
+				}
+			}catch(Ninep.FormatError e){
+				active.diagnose("can't unpack: bad 9P type or format");
+				pool.put(b);
+			}
+		}
+
+		/*
+		 *	A Conn served by an Engine has a Port instead of a Reader and Writer.
+		 *	The engine's loop reads and writes the channel without blocking:
+		 *	replies are framed from what has arrived, and requests are sent as far as the channel will take them,
+		 *	the rest waiting until the channel is writable. Putting a request on writeq wakes the loop.
+		 */
+		private class Port implements Runnable {
+			final SocketChannel	ch;
+			final EngineLoop	loop;
+			final AtomicBoolean	queued = new AtomicBoolean();	// on loop's pending queue
+			final Ninep.Unpack	unpacker = ninep.new Unpack();
+			final Ninep.RView	view = new Ninep.RView();
+			final ByteBuffer	in = ByteBuffer.allocate(Ninep.MAXRPC);	// bytes read and not yet dispatched
+			ByteBuffer	msg;	// a reply too big for in, being read straight into a buffer from msgpool
+			Buffers	msgpool;
+			final ArrayList<Request>	batch = new ArrayList<Request>();
+			final ArrayList<ByteBuffer>	gathered = new ArrayList<ByteBuffer>();
+			ByteBuffer[]	out;	// packed requests not yet written
+			ByteBuffer	outbuf;	// pooled buffer in out, released once written
+			SelectionKey	key;
+			boolean	dead;
+
+			Port(SocketChannel ch, EngineLoop loop){
+				this.ch = ch;
+				this.loop = loop;
+			}
+
+			// there are requests to send: have the loop service this port
+			public void run(){
+				if(queued.compareAndSet(false, true)){
+					loop.pending.add(this);
+					loop.selector.wakeup();
+				}
+			}
+
+			// called by the loop when woken: register the channel, the first time, and send what is queued
+			final void service(){
+				queued.set(false);
+				if(dead)
+					return;
+				if(key == null){
+					try{
+						key = ch.register(loop.selector, SelectionKey.OP_READ, this);
+					}catch(IOException e){
+						teardown(Ehungup);
+						return;
+					}
+				}
+				flush();
+			}
+
+			// read what has arrived, and dispatch each complete reply
+			final void readable(){
+				try{
+					for(;;){
+						if(msg != null){
+							int n = ch.read(msg);
+							if(n < 0)
+								throw new EOFException();
+							if(msg.hasRemaining()){
+								if(n == 0)
+									return;
+								continue;
+							}
+							ByteBuffer b = msg;
+							msg = null;
+							b.flip();
+							dispatch(unpacker, msgpool, b);
+							continue;
+						}
+						int n = ch.read(in);
+						if(n < 0)
+							throw new EOFException();
+						in.flip();
+						boolean ok = frames();
+						in.compact();
+						if(!ok || n == 0)
+							return;
+					}
+				}catch(EOFException e){
+					teardown(Ehungup);
+				}catch(ClosedChannelException e){
+					teardown(Ehungup);
+				}catch(IOException e){
+					teardown("error reading 9P message: "+e);
+				}
+			}
+
+			// dispatch the complete replies at the front of in, and start msg for one too big for in;
+			// return false if the connection has been shut down
+			private boolean frames(){
+				final int H = Ninep.BIT32SZ+Ninep.BIT8SZ+Ninep.BIT16SZ;	// size[4] type[1] tag[2]
+				while(in.remaining() >= H){
+					int p = in.position();
+					int ml = view.wrap(in).size();
+					int msglim = msize;
+					if(msglim == 0)
+						msglim = Ninep.MAXRPC;
+					if(ml > msglim){
+						teardown(String.format("9P message longer than agreed: %d > %d", ml, msglim));
+						return false;
+					}
+					if(ml < H){
+						teardown("invalid 9P message size");
+						return false;
+					}
+					if(in.remaining() < ml && ml <= in.capacity())
+						break;	// the rest will follow
+					Buffers pool = buffers;
+					ByteBuffer b = pool.get(ml-Ninep.BIT32SZ);
+					in.position(p+Ninep.BIT32SZ);
+					if(in.remaining() < ml-Ninep.BIT32SZ){
+						// too big for in: read the rest straight into its own buffer
+						b.put(in);
+						msg = b;
+						msgpool = pool;
+						return true;
+					}
+					int lim = in.limit();
+					in.limit(p+ml);
+					b.put(in);
+					in.limit(lim);
+					b.flip();
+					dispatch(unpacker, pool, b);
+				}
+				return true;
+			}
+
+			// send what is queued, as far as the channel will take it without blocking
+			final void flush(){
+				try{
+					for(;;){
+						if(out != null){
+							ch.write(out);
+							if(out[out.length-1].hasRemaining()){
+								key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+								return;
+							}
+							buffers.put(outbuf);
+							out = null;
+							outbuf = null;
+						}
+						Request req = writeq.poll();
+						if(req == null){
+							if(writeq.closed())
+								teardown(Ehungup);
+							else if(key.isValid())
+								key.interestOps(SelectionKey.OP_READ);
+							return;
+						}
+						batch.clear();
+						batch.add(req);
+						writeq.take(batch, req.t.packedsize(), Writebatch);
+						gathered.clear();
+						ByteBuffer buf = packmsgs(batch, gathered);
+						if(batch.isEmpty()){
+							buffers.put(buf);
+							continue;
+						}
+						for(Request r : batch){
+							if(log.tracing())
+								log.trace("-> %s", r.t);
+							active.add(r);	// must add before write, to avoid race with reply
+						}
+						stats.wrote(batch.size());
+						if(gathered.size() > 1)
+							out = gathered.toArray(new ByteBuffer[gathered.size()]);
+						else
+							out = new ByteBuffer[]{buf};
+						outbuf = buf;
+					}
+				}catch(ClosedChannelException e){
+					teardown(Ehungup);
+				}catch(IOException e){
+					teardown(Emountrpc+": "+e.getMessage());
+				}
+			}
+
+			// the connection has failed or been shut down: answer everything outstanding with err
+			final void teardown(String err){
+				if(dead)
+					return;
+				dead = true;
+				if(key != null)
+					key.cancel();
+				try{
+					ch.close();
+				}catch(IOException e){
+					// we don't care
+				}
+				out = null;
+				outbuf = null;
+				msg = null;
+				writeq.poison(err);
+				active.shutdown(err);
+				if(log.tracing())
+					log.trace("Port exit: "+err);
+			}
+		}
+
+		// give f a tag, unless it is Tversion
+		final void settag(Ninep.Tmsg f) throws IOException {
+			int otype = f.mtype();
+			int tag;
+			if(otype == Ninep.MTversion)
+				f.tag = Ninep.NOTAG;
+			else if((tag = tags.get()) != Ninep.NOTAG)
+				f.tag = tag;
+			else
+				throw new IOException("out of 9P message tags");	// unlikely: there are 2^16-2
+		}
+
+		// give back the pooled buffer held by req, once its data has been consumed
+		final void release(Request req){
+			ByteBuffer b = req.buf;
+			if(b != null){
+				req.buf = null;
+				buffers.put(b);
+			}
+		}
+
+		// tag and pack a batch of requests into one pooled buffer, answering and dropping any that cannot be tagged.
+		// if gathered is not null, the data of a large Twrite is not copied into the buffer: instead, gathered
+		// receives the sequence of buffers to write, alternating slices of the packed buffer with Twrite data.
+		ByteBuffer packmsgs(ArrayList<Request> batch, ArrayList<ByteBuffer> gathered){
+			int size = 0;
+			for(int i = 0; i < batch.size();){
+				Request req = batch.get(i);
+				try{
+					settag(req.t);
+					if(gathered != null && gathers(req.t))
+						size += ((Ninep.Twrite)req.t).headersize();
+					else
+						size += req.t.packedsize();
+					i++;
+				}catch(IOException e){
+					log.trace("pack: "+req.t+": exception: "+e);
+					req.replyerr("error packing 9P request: "+e.getMessage());
+					batch.remove(i);
+				}
+			}
+			ByteBuffer buf = buffers.get(size);
+			int mark = 0;
+			for(Request req : batch){
+				Ninep.Tmsg f = req.t;
+				f.packsize(buf, f.packedsize());
+				if(gathered != null && gathers(f)){
+					Ninep.Twrite w = (Ninep.Twrite)f;
+					w.packheader(buf);
+					gathered.add(segment(buf, mark, buf.position()));
+					gathered.add(w.data.duplicate());
+					mark = buf.position();
+				}else
+					f.pack(buf);
+			}
+			if(gathered != null && buf.position() > mark)
+				gathered.add(segment(buf, mark, buf.position()));
+			buf.flip();
+			return buf;
+		}
+
+		private boolean gathers(Ninep.Tmsg f){
+			return f instanceof Ninep.Twrite && ((Ninep.Twrite)f).data.remaining() >= Gathermin;
+		}
+
+		private ByteBuffer segment(ByteBuffer buf, int start, int end){
+			ByteBuffer b = buf.duplicate();
+			b.limit(end);
+			b.position(start);
+			return b.slice();
+		}
+
+		// could have more than one of these, if it's a bottleneck
+		// the Writer sends everything queued when it wakes, up to Writebatch bytes, in a single write
+		private class Writer implements Runnable {
+			public final void run(){
+				/* we rely on Channel's non-interleaving semantics (TO DO: test) */
+				/* channel must not be non-blocking (short writes) */
+				String err;
+				ArrayList<Request> batch = new ArrayList<Request>();
+				GatheringByteChannel gfd = null;
+				ArrayList<ByteBuffer> gathered = null;
+				if(fd instanceof GatheringByteChannel){
+					gfd = (GatheringByteChannel)fd;
+					gathered = new ArrayList<ByteBuffer>();
+				}
+			   Service:
+				for(;;){
+					Request req;
+					err = Ehungup;
+					try{
+						req = writeq.get();
+						if(req == null)
+							break Service;
+					}catch(InterruptedException e){
+						break Service;
+					}
+					batch.clear();
+					batch.add(req);
+					writeq.take(batch, req.t.packedsize(), Writebatch);
+					if(gathered != null)
+						gathered.clear();
+					ByteBuffer buf = packmsgs(batch, gathered);
+					if(batch.isEmpty()){
+						buffers.put(buf);
+						continue;
+					}
+					try{
+						for(Request r : batch){
+							if(log.tracing())
+								log.trace("-> %s", r.t);
+							active.add(r);	// must add before write, to avoid race with reply
+						}
+						stats.wrote(batch.size());
+						if(gathered != null && gathered.size() > 1)
+							writeall(gfd, gathered.toArray(new ByteBuffer[gathered.size()]));
+						else{
+							int size = buf.remaining();
+							if(fd.write(buf) != size)
+								throw new IOException("short write on 9P channel");
+						}
+					}catch(AsynchronousCloseException e){
+						replyerr(batch, err);
+						break Service;
+					}catch(ClosedChannelException e){
+						replyerr(batch, err);
+						break Service;
+					}catch(IOException e){
+						err = Emountrpc+": "+e.getMessage();
+						replyerr(batch, err);
+						// attempt to continue, as devmnt does
+					}
+					buffers.put(buf);
+				}
+				writeq.poison(err);
+				if(log.tracing())
+					log.trace("Writer exit: "+err);
+			}
+
+			// write the buffers in order, as a single gathering write if the channel allows
+			private void writeall(GatheringByteChannel fd, ByteBuffer[] bufs) throws IOException {
+				long size = 0;
+				for(ByteBuffer b : bufs)
+					size += b.remaining();
+				while(size > 0){
+					long n = fd.write(bufs);
+					if(n <= 0)
+						throw new IOException("short write on 9P channel");
+					size -= n;
+				}
+			}
+
+			// answer the requests of a batch that could not be sent, unless a reply or shutdown has answered them already
+			private void replyerr(ArrayList<Request> batch, String err){
+				for(Request r : batch)
+					if(active.remove(r))
+						r.replyerr(err);
+			}
+		}
+	}
+
+	/**
+	 * FS represents an attached file system (file tree) on a 9P connection.
+	 * <p>
+	 * It provides operations to access and change the file system using hierarchical names, including
+	 * create, open, stat, wstat, remove, chdir and getwd. All but chdir and getwd apply to all file types including directories;
+	 * chdir and getwd are restricted to directories.
+	 *
+	 * By convention, these operations do not consider failure to be exceptional, and do not throw exceptions.
+	 * Instead, an error value is returned, appropriate for the operations return type.
+	 * Errstr returns the cause of the last error, as a string. Usually it will be the error text returned by the 9P server,
+	 * although a few errors are diagnosed locally.
+	 * <p>
+	 * Create and open access named files for IO, returning instances of the class FD.
+	 */
+	public class FS {
+		int	inuse = 1;
+		Conn	conn;
+		FD	root;
+		int	readahead;	// read-ahead window for files opened by this FS
+		volatile WalkCache	walks;	// non-null: cache of directories walked from root
+		volatile StatCache	attrs;	// non-null: cache of file attributes by name
+		volatile boolean	pipelined;	// open, stat and remove send their requests without waiting for the walk
+		private ThreadLocal<FD> dot;
+
+		private final FD getdot(){ return dot.get(); }
+		private final void setdot(FD fd){
+			FD ofd = getdot();
+			dot.set(fd);
+			if(ofd != null)
+				ofd.close();
+		}
+
+		protected FS(Conn conn, FD root){
+			this.conn = conn;
+			this.root = root;
+			this.dot = new ThreadLocal<FD>();
+		}
+
+		/** Return the per-thread error string */
+		public String errstr(){
+			return NinepClient.this.errstr();
+		}
+
+		/**
+		 * Set the read-ahead window for files subsequently opened by this FS (see {@link NinepClient.FD#setReadAhead}).
+		 * @param	window	number of reads to keep in flight during sequential access, or 0 to disable read-ahead
+		 */
+		public void setReadAhead(int window){
+			readahead = window;
+		}
+
+		/**
+		 * Enable or disable the walk cache.
+		 * <p>
+		 * When enabled, the FS keeps fids for up to <i>size</i> directories recently walked from the root, least recently used first out.
+		 * A later walk from the root (of an absolute name, or any name if there is no current directory) then starts from the deepest
+		 * cached directory on its path, with a shorter Twalk. After a walk that did not start from the parent of its destination,
+		 * a fid for that parent is walked in the background, to be cached.
+		 * <p>
+		 * A directory and everything below it leaves the cache when it is removed or its directory entry is changed through this FS.
+		 * Changes made by other clients are noticed only when a walk from a cached directory fails: the directory is dropped from the cache,
+		 * and the walk is repeated from the root.
+		 * Names containing ".." do not use the cache.
+		 * See {@link NinepClient.Stats} for hits, misses and evictions.
+		 * @param	size	number of directories to cache, or 0 to disable the cache, releasing its fids
+		 */
+		public void setWalkCache(int size){
+			WalkCache old;
+			synchronized(this){
+				old = walks;
+				walks = size > 0 ? new WalkCache(size) : null;
+			}
+			if(old != null){
+				old.clear();
+				release(old);
+			}
+		}
+
+		// drop the references held for directories that have left the cache
+		private void release(WalkCache wc){
+			for(FD fd : wc.evicted()){
+				conn.stats.walkevictions.incrementAndGet();
+				fd.clunkAsync();
+			}
+		}
+
+		/**
+		 * Enable or disable the stat cache.
+		 * <p>
+		 * When enabled, the result of {@link #stat} (or {@link #statAsync}) for a name is kept for <i>ttl</i> milliseconds,
+		 * for up to <i>size</i> names, least recently used first out, and a later stat of the same name in that time needs no messages.
+		 * Files opened or created by the FS also use the cache for {@link NinepClient.FD#stat}, and reading a directory
+		 * so opened caches the attributes of its entries.
+		 * <p>
+		 * The cache is kept consistent with changes made through this FS and the FDs it opens:
+		 * create, remove, wstat, truncation and writes drop the attributes of the file (and of its directory, where that changes).
+		 * Changes made by other clients are seen only when the cached attributes expire, so <i>ttl</i> is the bound on how stale a result can be.
+		 * Names containing ".." do not use the cache.
+		 * See {@link NinepClient.Stats} for the hit rate.
+		 * @param	size	number of names to cache, or 0 to disable the cache
+		 * @param	ttl	time in milliseconds for which attributes are kept
+		 */
+		public void setStatCache(int size, int ttl){
+			attrs = size > 0 && ttl > 0 ? new StatCache(size, ttl*1000000L) : null;
+		}
+
+		/**
+		 * Enable or disable pipelining of compound operations.
+		 * <p>
+		 * When enabled, {@link #open}, {@link #stat} and {@link #remove} send the Twalk for the name
+		 * and the request that follows it on the new fid (Topen, Tstat, Tremove) together, without waiting for the walk,
+		 * so the operation costs one round trip instead of two or three.
+		 * Stat clunks the fid without waiting for the reply.
+		 * If the walk fails, the server rejects the rest, and the operation fails with the walk's diagnostic as usual.
+		 * This relies on the server handling a connection's requests in order, as most do.
+		 * Names with more than {@link Ninep#MAXWELEM} elements, or names that could use the walk cache, are walked first as usual.
+		 */
+		public void setPipelined(boolean on){
+			pipelined = on;
+		}
+
+		// true if an operation on p should be pipelined
+		private boolean pipelines(Parse p){
+			return pipelined && p.els.length <= Ninep.MAXWELEM && (walks == null || walkfrom(p) != root);
+		}
+
+		// send a walk of fd to p, from ofd, followed at once by the requests in chain, which act on fd's fid.
+		// if the walk fails, return null, setting the error string, having waited for the server to reject the chain;
+		// otherwise return the replies to the chain, with null for any that failed, the error string giving the first error.
+		// if clunk is true, fd's fid is clunked after the chain, without waiting, whatever happens.
+		private Ninep.Rmsg[] pipeline(FD ofd, FD fd, Parse p, boolean clunk, Ninep.Tmsg... chain) throws ConnectionFailed, InterruptedIOException {
+			Request[] reqs = new Request[chain.length];
+			for(int i = 0; i < chain.length; i++)
+				reqs[i] = new Request(chain[i]);
+			return pipeline(ofd, fd, p, clunk, reqs);
+		}
+		// as above, but with requests made by the caller; if p is null, fd has already been walked, and only the chain is sent
+		private Ninep.Rmsg[] pipeline(FD ofd, FD fd, Parse p, boolean clunk, Request... chain) throws ConnectionFailed, InterruptedIOException {
+			ArrayDeque<Request> pending = new ArrayDeque<Request>();
+			try{
+				if(p != null)
+					pending.add(conn.rpcsend(ninep.new Twalk(ofd.fid, fd.fid, p.els)));
+				for(Request req : chain)
+					pending.add(conn.rpcsend(req));
+				if(clunk){
+					fd.clunkAsync();
+					clunk = false;
+				}
+				String err = null;
+				if(p != null){
+					Ninep.Rwalk r = (Ninep.Rwalk)conn.rpcwait(pending.remove());
+					err = r == null ? errstr() : walkcheck(p, r.qids);
+					if(err != null){
+						fd.abandon(pending);
+						werrstr(err);
+						return null;
+					}
+					walked(ofd, fd, p, r.qids);
+				}
+				Ninep.Rmsg[] replies = new Ninep.Rmsg[chain.length];
+				for(int i = 0; i < chain.length; i++){
+					replies[i] = conn.rpcwait(pending.remove());
+					if(replies[i] == null && err == null)
+						err = errstr();
+				}
+				if(err != null)
+					werrstr(err);
+				return replies;
+			}finally{
+				fd.abandon(pending);
+				if(clunk)
+					fd.clunkAsync();
+			}
+		}
+
+		/**
+		 * Read the whole of the file <i>name</i>, or its first <i>max</i> bytes, returning the data in a single buffer,
+		 * or null if an error occurred (setting the error string).
+		 * <p>
+		 * The walk, a stat, the open and the first read are sent together, and the file is clunked without waiting,
+		 * so a file that fits in one message costs one round trip. The rest of a larger file is read with several reads in flight,
+		 * sized by the file's length, or by doubling when the length is zero, as it is for many synthetic files.
+		 * As with {@link #setPipelined}, this relies on the server handling a connection's requests in order.
+		 * A short read is taken as the end of the file, so this is not for directories (see {@link NinepClient.FD#dirreadall}).
+		 * <p>
+		 * The buffer comes from the connection's pool of message buffers, and belongs to the caller.
+		 * Its position is zero and its limit is the number of bytes read.
+		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
+		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
+		 */
+		public ByteBuffer readFile(String name, int max) throws ConnectionFailed, InterruptedIOException {
+			if(max < 0)
+				max = Integer.MAX_VALUE;
+			Parse p = new Parse(name);
+			FD fd;
+			Parse walk = p;
+			if(p.els.length > Ninep.MAXWELEM || walks != null && walkfrom(p) == root){
+				fd = walk(name);	// chunked, or using the walk cache
+				if(fd == null)
+					return null;
+				walk = null;
+			}else
+				fd = conn.newfd();
+			int first = Math.min(max, conn.msize-IOHDRSZ);
+			ByteBuffer buf = conn.buffers.get(first);
+			Request rd = new Request(ninep.new Tread(fd.fid, 0, first));
+			rd.dest = buf.duplicate();
+			boolean ok = false;
+			try{
+				Ninep.Rmsg[] rs = pipeline(walkfrom(p), fd, walk, false, new Request(ninep.new Tstat(fd.fid)), new Request(ninep.new Topen(fd.fid, Ninep.OREAD)), rd);
+				if(rs == null){
+					fd.free();
+					fd = null;
+					return null;
+				}
+				Ninep.Ropen ro = (Ninep.Ropen)rs[1];
+				Ninep.Rread r = (Ninep.Rread)rs[2];
+				if(ro == null || r == null)
+					return null;
+				fd.open(Ninep.OREAD, ro.iounit, ro.qid);
+				int n = Math.min(r.data.remaining(), first);
+				if(!rd.inplace){
+					r.data.limit(r.data.position()+n);
+					buf.put(r.data);
+					conn.release(rd);
+				}
+				long length = rs[0] != null ? ((Ninep.Rstat)rs[0]).stat.length : 0;
+				int full = ro.iounit > 0 ? Math.min(first, ro.iounit) : first;
+				if(n >= full && n < max && (length == 0 || n < length)){
+					int size = n;
+					do{
+						size = (int)Math.min((long)max, length > size ? length : 2L*size);
+						ByteBuffer nb = conn.buffers.get(size);
+						buf.position(0);
+						buf.limit(n);
+						nb.put(buf);
+						conn.buffers.put(buf);
+						buf = nb;
+						n += fd.readwindow(buf, n, Transferwindow);
+					}while(n == size && size < max && (length == 0 || n < length));
+				}
+				buf.position(0);
+				buf.limit(n);
+				ok = true;
+				return buf;
+			}catch(ConnectionFailed e){
+				throw e;
+			}catch(InterruptedIOException e){
+				throw e;
+			}catch(IOException e){
+				werrstr(e.getMessage());
+				return null;
+			}finally{
+				if(!ok){
+					rd.abandondest();	// the first read's reply can no longer arrive in buf
+					conn.buffers.put(buf);
+				}
+				if(fd != null)
+					fd.clunkAsync();
+			}
+		}
+
+		/**
+		 * Write the bytes remaining in <i>data</i> to the start of the existing file <i>name</i>, opened with the given <i>mode</i>
+		 * (eg, Ninep.OWRITE, or Ninep.OWRITE|Ninep.OTRUNC), returning the number of bytes written, or -1 if an error occurred (setting the error string).
+		 * The buffer's position is advanced by the number of bytes written.
+		 * <p>
+		 * The walk, the open and the first write are sent together, and the file is clunked without waiting,
+		 * so writing a control message, or anything else that fits in one message, costs one round trip.
+		 * The rest of a larger buffer is written with several writes in flight.
+		 * As with {@link #setPipelined}, this relies on the server handling a connection's requests in order.
+		 *	@throws	InterruptedIOException	operation was interrupted (eg, by an alarm)
+		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
+		 */
+		public int writeFile(String name, ByteBuffer data, int mode) throws ConnectionFailed, InterruptedIOException {
+			Parse p = new Parse(name);
+			FD fd;
+			Parse walk = p;
+			if(p.els.length > Ninep.MAXWELEM || walks != null && walkfrom(p) == root){
+				fd = walk(name);
+				if(fd == null)
+					return -1;
+				walk = null;
+			}else
+				fd = conn.newfd();
+			int len = data.remaining();
+			int first = Math.min(len, conn.msize-IOHDRSZ);
+			boolean changed = false;
+			try{
+				Ninep.Rmsg[] rs = pipeline(walkfrom(p), fd, walk, false, ninep.new Topen(fd.fid, mode), ninep.new Twrite(fd.fid, 0, data.duplicate(), first));
+				if(rs == null){
+					fd.free();
+					fd = null;
+					return -1;
+				}
+				Ninep.Ropen ro = (Ninep.Ropen)rs[0];
+				Ninep.Rwrite r = (Ninep.Rwrite)rs[1];
+				if(ro == null)
+					return -1;
+				fd.open(openmode(mode), ro.iounit, ro.qid);
+				opened(fd, mode);
+				changed = true;	// once open, the file might have been truncated or partly written, even if the write failed
+				if(r == null)
+					return -1;
+				int n = Math.min(r.count, first);
+				data.position(data.position()+n);
+				int full = ro.iounit > 0 ? Math.min(first, ro.iounit) : first;
+				if(n >= full && n < len)
+					n += fd.writewindow(data, n, Transferwindow);
+				return n;
+			}catch(ConnectionFailed e){
+				throw e;
+			}catch(InterruptedIOException e){
+				throw e;
+			}catch(IOException e){
+				werrstr(e.getMessage());
+				return -1;
+			}finally{
+				if(changed)
+					fd.changed();
+				if(fd != null)
+					fd.clunkAsync();
+			}
 		}
 
-		// could have more than one of these, if it's a bottleneck
-		private class Writer extends Thread {
-			Writer(){
-				setDaemon(true);
-				Misc.nominate(this);
+		/**
+		 * Walk the tree of files below the directory <i>name</i>, giving each entry to <i>visitor</i>,
+		 * and return the number of entries visited.
+		 * <p>
+		 * Directories are read by a pool of <i>parallelism</i> threads, so that up to that many directories
+		 * are being opened and read at once; each directory's entries reach the visitor as they are decoded,
+		 * and its subdirectories are walked as they are found, unless the visitor prunes them.
+		 * A directory that can't be opened or read is reported to the visitor's <i>failed</i> method, and skipped.
+		 * The directory <i>name</i> itself is not visited.
+		 * @param	maxdepth	depth of the deepest entries to visit: 1 visits only the entries of <i>name</i>
+		 * @throws	IOException	if the visitor throws an exception, or the connection fails, or the walk is interrupted
+		 */
+		public long walkTree(String name, TreeVisitor visitor, int parallelism, int maxdepth) throws IOException {
+			if(parallelism <= 0)
+				throw new IllegalArgumentException("walkTree needs at least one thread");
+			AtomicLong count = new AtomicLong();
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try{
+				pool.invoke(new Descent(name, 1, maxdepth, visitor, count, new AtomicBoolean()));
+			}catch(UncheckedIOException e){
+				throw e.getCause();
+			}finally{
+				pool.shutdownNow();
+				awaitquietly(pool);	// the visitor must not be called once this returns
 			}
+			return count.get();
+		}
 
-			public final void run(){
-				/* we rely on Channel's non-interleaving semantics (TO DO: test) */
-				/* channel must not be non-blocking (short writes) */
-				String err;
-			   Service:
-				for(;;){
-					Request req;
-					err = Ehungup;
-					try{
-						req = writeq.get();
-						if(req == null)
-							break Service;
-					}catch(InterruptedException e){
-						break Service;
-					}
-					ByteBuffer buf = null;
+		/**
+		 * Walk the whole tree of files below the directory <i>name</i>, as {@link #walkTree(String, TreeVisitor, int, int)}.
+		 */
+		public long walkTree(String name, TreeVisitor visitor, int parallelism) throws IOException {
+			return walkTree(name, visitor, parallelism, Integer.MAX_VALUE);
+		}
+
+		// walkTree's task for one directory, whose entries are at the given depth
+		private class Descent extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			final String	name;
+			final int	depth;
+			final int	maxdepth;
+			final TreeVisitor	visitor;
+			final AtomicLong	count;
+			final AtomicBoolean	stop;	// set when any Descent fails, so the rest stop early
+
+			Descent(String name, int depth, int maxdepth, TreeVisitor visitor, AtomicLong count, AtomicBoolean stop){
+				this.name = name;
+				this.depth = depth;
+				this.maxdepth = maxdepth;
+				this.visitor = visitor;
+				this.count = count;
+				this.stop = stop;
+			}
+
+			// every subdirectory forked is joined, even after a failure, so that none is still running when the walk ends;
+			// the first failure is rethrown
+			protected void compute(){
+				ArrayList<Descent> subdirs = new ArrayList<Descent>();
+				RuntimeException err = null;
+				try{
+					descend(subdirs);
+				}catch(IOException e){
+					err = new UncheckedIOException(e);
+				}catch(RuntimeException e){
+					err = e;
+				}
+				if(err != null)
+					stop.set(true);
+				for(Descent sub : subdirs){
 					try{
-						buf = packmsg(req.t);
-					}catch(IOException e){
-						log.trace("pack: "+req.t+": exception: "+e);
-						req.replyerr("error packing 9P request: "+e.getMessage());
-						continue;
+						sub.join();
+					}catch(RuntimeException e){
+						if(err == null)
+							err = e;
 					}
+				}
+				if(err != null)
+					throw err;
+			}
+
+			// visit the entries of the directory, adding a forked Descent to subdirs for each subdirectory to walk
+			private void descend(ArrayList<Descent> subdirs) throws IOException {
+				if(stop.get())
+					return;
+				FD fd = open(name, Ninep.OREAD);
+				if(fd == null){
+					visitor.failed(name, errstr());
+					return;
+				}
+				try{
+					DirIterator it = fd.diriterator();
 					try{
-						if(log.tracing())
-							log.trace("-> %s", req.t);
-						active.add(req);	// must add before write, to avoid race with reply
-						int size = buf.remaining();
-						if(fd.write(buf) != size)
-							throw new IOException("short write on 9P channel");
-					}catch(AsynchronousCloseException e){
-						req.replyerr(err);
-						break Service;
-					}catch(ClosedChannelException e){
-						req.replyerr(err);
-						break Service;
-					}catch(IOException e){
-						err = Emountrpc+": "+e.getMessage();
-						req.replyerr(err);
-						// attempt to continue, as devmnt does
+						while(!stop.get() && it.hasNext()){
+							Dir d = it.next();
+							String child = addname(name, d.name);
+							count.incrementAndGet();
+							if(visitor.visit(child, d, depth) && (d.mode & Dir.DMDIR) != 0 && depth < maxdepth){
+								Descent sub = new Descent(child, depth+1, maxdepth, visitor, count, stop);
+								sub.fork();
+								subdirs.add(sub);
+							}
+						}
+					}finally{
+						it.close();	// collect the read in flight, if the visitor or a read failed
 					}
+				}catch(UncheckedIOException e){
+					if(e.getCause() instanceof ConnectionFailed || e.getCause() instanceof InterruptedIOException)
+						throw e;
+					visitor.failed(name, e.getCause().getMessage());
+				}finally{
+					fd.close();
 				}
-				writeq.poison(err);
-				if(log.tracing())
-					log.trace("Writer exit: "+err);
 			}
 		}
-	}
 
-	/**
-	 * FS represents an attached file system (file tree) on a 9P connection.
-	 * <p>
-	 * It provides operations to access and change the file system using hierarchical names, including
-	 * create, open, stat, wstat, remove, chdir and getwd. All but chdir and getwd apply to all file types including directories;
-	 * chdir and getwd are restricted to directories.
-	 *
-	 * By convention, these operations do not consider failure to be exceptional, and do not throw exceptions.
-	 * Instead, an error value is returned, appropriate for the operations return type.
-	 * Errstr returns the cause of the last error, as a string. Usually it will be the error text returned by the 9P server,
-	 * although a few errors are diagnosed locally.
-	 * <p>
-	 * Create and open access named files for IO, returning instances of the class FD.
-	 */
-	public class FS {
-		int	inuse = 1;
-		Conn	conn;
-		FD	root;
-		private ThreadLocal<FD> dot;
+		// wait for pool's threads to finish, ignoring interrupts, but keeping the thread's interrupt status
+		private void awaitquietly(ForkJoinPool pool){
+			boolean intr = false;
+			for(;;){
+				try{
+					if(pool.awaitTermination(1, TimeUnit.SECONDS))
+						break;
+				}catch(InterruptedException e){
+					intr = true;
+				}
+			}
+			if(intr)
+				Thread.currentThread().interrupt();
+		}
 
-		private final FD getdot(){ return dot.get(); }
-		private final void setdot(FD fd){
-			FD ofd = getdot();
-			dot.set(fd);
-			if(ofd != null)
-				ofd.close();
+		// name of p as kept in the stat cache, or null if it can't be cached
+		private String cachename(Parse p){
+			if(dotdot(p))
+				return null;
+			String s = walkfrom(p).name;
+			if(s == null)
+				return null;
+			for(String e : p.els)
+				s = addname(s, e);
+			return s;
 		}
 
-		protected FS(Conn conn, FD root){
-			this.conn = conn;
-			this.root = root;
-			this.dot = new ThreadLocal<FD>();
+		// forget the named file, and if tree, anything below it, because it has been created, removed or changed;
+		// the parent directory's own attributes change too
+		private void forget(String name, boolean tree){
+			if(name == null)
+				return;
+			WalkCache wc = walks;
+			if(wc != null && tree){	// the walk cache holds only directories
+				wc.invalidate(name);
+				release(wc);
+			}
+			StatCache sc = attrs;
+			if(sc != null){
+				if(tree)
+					sc.invalidate(name);
+				else
+					sc.remove(name);
+				sc.remove(StatCache.parentname(name));
+			}
 		}
 
-		/** Return the per-thread error string */
-		public String errstr(){
-			return NinepClient.this.errstr();
+		// note the stat cache in an FD opened by this FS
+		private void opened(FD fd, int mode){
+			StatCache sc = attrs;
+			if(sc == null)
+				return;
+			fd.attrs = sc;
+			if((mode & Ninep.OTRUNC) != 0)
+				sc.remove(fd.name);
 		}
 
 		/** @deprecated */
@@ -843,6 +2784,7 @@ public class NinepClient {
 				if(--inuse != 0)
 					return;
 			}
+			setWalkCache(0);
 			root.close();
 			root = null;
 			FD fd = getdot();
@@ -860,15 +2802,40 @@ public class NinepClient {
 		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
 		 */
 		public FD open(String name, int mode) throws ConnectionFailed, InterruptedIOException {
-			FD fd = walk(name);
-			if(fd == null)
-				return null;
-			Ninep.Ropen r = (Ninep.Ropen)conn.ninepreq(ninep.new Topen(fd.fid, mode));
+			Parse p = new Parse(name);
+			FD fd;
+			Ninep.Ropen r;
+			if(pipelines(p)){
+				fd = conn.newfd();
+				Ninep.Rmsg[] rs;
+				try{
+					rs = pipeline(walkfrom(p), fd, p, false, ninep.new Topen(fd.fid, mode));
+				}catch(ConnectionFailed e){
+					fd.free();
+					throw e;
+				}catch(InterruptedIOException e){
+					fd.free();
+					throw e;
+				}
+				if(rs == null){
+					fd.free();
+					return null;
+				}
+				r = (Ninep.Ropen)rs[0];
+			}else{
+				fd = walk(name);
+				if(fd == null)
+					return null;
+				r = (Ninep.Ropen)conn.ninepreq(ninep.new Topen(fd.fid, mode));
+			}
 			if(r == null){
 				fd.close();
 				return null;
 			}
 			fd.open(openmode(mode), r.iounit, r.qid);
+			opened(fd, mode);
+			if(readahead > 0)
+				fd.setReadAhead(readahead);
 			return fd;
 		}
 
@@ -886,7 +2853,7 @@ public class NinepClient {
 				return null;
 			}
 			FD fd = conn.newfd();
-			if(!walk(walkfrom(p), fd, new Parse(p, 0, p.els.length-1))){	// walk to penultimate entry
+			if(!walk(fd, new Parse(p, 0, p.els.length-1))){	// walk to penultimate entry
 				fd.free();
 				return null;
 			}
@@ -896,6 +2863,7 @@ public class NinepClient {
 				fd.close();
 				return null;
 			case 1:
+				opened(fd, mode);
 				return fd;
 			}
 			/* must create */
@@ -906,6 +2874,8 @@ public class NinepClient {
 				fd.mode = openmode(mode);
 				fd.iounit = r.iounit;
 				fd.qid = r.qid;
+				forget(fd.name, false);	// nothing can be below it yet
+				opened(fd, mode);
 				return fd;
 			}
 			/* to allow for create/create race, attempt a second open here */
@@ -915,6 +2885,7 @@ public class NinepClient {
 				werrstr(s);	/* restore original diagnostic */
 				return null;
 			}
+			opened(fd, mode);
 			return fd;
 		}
 
@@ -924,11 +2895,35 @@ public class NinepClient {
 		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
 		 */
 		public Dir stat(String name) throws ConnectionFailed, InterruptedIOException {
-			FD fd = walk(name);
-			if(fd == null)
-				return null;
-			Dir d = fd.qstat();
-			fd.close();
+			StatCache sc = attrs;
+			String key = null;
+			long gen = 0;
+			if(sc != null && (key = cachename(new Parse(name))) != null){
+				Dir d = sc.get(key);
+				if(d != null){
+					conn.stats.stathits.incrementAndGet();
+					return d;
+				}
+				conn.stats.statmisses.incrementAndGet();
+				gen = sc.generation();
+			}
+			Dir d;
+			Parse p = new Parse(name);
+			if(pipelines(p)){
+				FD fd = conn.newfd();
+				Ninep.Rmsg[] rs = pipeline(walkfrom(p), fd, p, true, ninep.new Tstat(fd.fid));
+				if(rs == null || rs[0] == null)
+					return null;
+				d = ((Ninep.Rstat)rs[0]).stat;
+			}else{
+				FD fd = walk(name);
+				if(fd == null)
+					return null;
+				d = fd.qstat();
+				fd.close();
+			}
+			if(key != null)
+				sc.put(key, d, gen);
 			return d;
 		}
 
@@ -948,6 +2943,8 @@ public class NinepClient {
 			if(fd == null)
 				return false;
 			boolean r = fd.wstat(d);
+			if(r)
+				forget(fd.name, fd.isdir());
 			fd.close();
 			return r;
 		}
@@ -958,10 +2955,26 @@ public class NinepClient {
 		 *	@throws	ConnectionFailed	9P connection was shut down, by hangup or IO error
 		 */
 		public boolean remove(String name) throws ConnectionFailed, InterruptedIOException {
+			Parse p = new Parse(name);
+			if(pipelines(p)){
+				FD fd = conn.newfd();
+				Ninep.Rmsg[] rs;
+				try{
+					rs = pipeline(walkfrom(p), fd, p, false, ninep.new Tremove(fd.fid));
+				}finally{
+					fd.free();	// Tremove clunks, even if the remove fails
+				}
+				if(rs == null || rs[0] == null)
+					return false;
+				forget(fd.name, fd.isdir());
+				return true;
+			}
 			FD fd = walk(name);
 			if(fd == null)
 				return false;
 			Ninep.Rremove r = (Ninep.Rremove)conn.ninepreq(ninep.new Tremove(fd.fid));
+			if(r != null)
+				forget(fd.name, fd.isdir());
 			fd.close();
 			return r != null;
 		}
@@ -983,6 +2996,87 @@ public class NinepClient {
 			return true;
 		}
 
+		/**
+		 * Asynchronous form of {@link #open}: walk to the file and open it, without waiting.
+		 * The future completes with the open FD, or exceptionally with an IOException giving the reason the file could not be opened.
+		 * As with {@link NinepClient.Conn#ninepreqAsync}, dependent actions that are not asynchronous must not block.
+		 */
+		public CompletableFuture<FD> openAsync(String name, final int mode){
+			final FD fd = conn.newfd();
+			final Chain<FD> result = new Chain<FD>();
+			walkAsync(fd, name).thenCompose(f -> result.step(conn.ninepreqAsync(ninep.new Topen(fd.fid, mode)))).whenComplete((r, e) -> {
+				if(e == null){
+					Ninep.Ropen ro = (Ninep.Ropen)r;
+					fd.open(openmode(mode), ro.iounit, ro.qid);
+					opened(fd, mode);
+					if(readahead > 0)
+						fd.setReadAhead(readahead);
+					if(result.complete(fd))
+						return;
+				}else
+					result.completeExceptionally(completion(e));
+				fd.clunkAsync();	// failed, or opened after the caller cancelled
+			});
+			return result;
+		}
+
+		/**
+		 * Asynchronous form of {@link #stat}: the future completes with the directory information for the named file,
+		 * or exceptionally with an IOException giving the reason.
+		 */
+		public CompletableFuture<Dir> statAsync(String name){
+			final StatCache sc = attrs;
+			final String key = sc != null ? cachename(new Parse(name)) : null;
+			final long gen;
+			if(key != null){
+				Dir d = sc.get(key);
+				if(d != null){
+					conn.stats.stathits.incrementAndGet();
+					return CompletableFuture.completedFuture(d);
+				}
+				conn.stats.statmisses.incrementAndGet();
+				gen = sc.generation();
+			}else
+				gen = 0;
+			final FD fd = conn.newfd();
+			final Chain<Dir> result = new Chain<Dir>();
+			walkAsync(fd, name).thenCompose(f -> result.step(conn.ninepreqAsync(ninep.new Tstat(fd.fid)))).whenComplete((r, e) -> {
+				fd.clunkAsync();
+				if(e != null){
+					result.completeExceptionally(completion(e));
+					return;
+				}
+				Dir d = ((Ninep.Rstat)r).stat;
+				if(key != null)
+					sc.put(key, d, gen);
+				result.complete(d);
+			});
+			return result;
+		}
+
+		/**
+		 * Asynchronous form of {@link #remove}: the future completes when the named file has been removed,
+		 * or exceptionally with an IOException giving the reason it was not.
+		 */
+		public CompletableFuture<Void> removeAsync(String name){
+			final FD fd = conn.newfd();
+			final Chain<Void> result = new Chain<Void>();
+			walkAsync(fd, name).thenCompose(f -> result.step(conn.ninepreqAsync(ninep.new Tremove(fd.fid)))).whenComplete((r, e) -> {
+				if(e != null){
+					if(result.isCancelled())
+						fd.clunkAsync();	// the Tremove might have been flushed before it was done
+					else
+						fd.free();	// Tremove clunks, even if the remove fails
+					result.completeExceptionally(completion(e));
+					return;
+				}
+				fd.free();
+				forget(fd.name, fd.isdir());
+				result.complete(null);
+			});
+			return result;
+		}
+
 		/** Return the name of the current directory */
 		public String getwd(){
 			FD fd = getdot();
@@ -1027,47 +3121,191 @@ public class NinepClient {
 		}
 
 		protected boolean walk(FD ofd, FD fd, Parse p) throws ConnectionFailed, InterruptedIOException {
+			if(p.els.length > Ninep.MAXWELEM)
+				return walkchunks(ofd, fd, p, true);
 			Ninep.Rwalk r = (Ninep.Rwalk)conn.ninepreq(ninep.new Twalk(ofd.fid, fd.fid, p.els));
 			if(r == null)
 				return false;
-			if(p.els.length > Ninep.MAXWELEM){
-				werrstr("walk too deep");		/* TO DO: chunks of MAXWELEM */
+			String err = walkcheck(p, r.qids);
+			if(err != null){
+				werrstr(err);
 				return false;
 			}
-			if(r.qids.length != p.els.length){	/* TO DO: chunks of MAXWELEM */
-				StringBuilder bs = new StringBuilder(64);
-				bs.append('\'');
-				if(p.abs)
-					bs.append('/');
-				int i;
-				for(i = 0; i < r.qids.length; i++){
-					if(i != 0)
-						bs.append('/');
-					bs.append(p.els[i]);
-				}
-				if(i == 0 || (r.qids[i-1].qtype & Qid.QTDIR) != 0){
-					if(bs.length() != 0)
-						bs.append('/');
-					bs.append(p.els[i]);
-					bs.append('\'');
-					bs.append(' ');
-					bs.append(Edoesnotexist);	// could be permission problem
-				}else{
-					bs.append('\'');
-					bs.append(' ');
-					bs.append(Enotdir);
+			walked(ofd, fd, p, r.qids);
+			return true;
+		}
+		// walk a name with more than MAXWELEM elements, a chunk at a time: the first Twalk clones ofd to fd, and the others walk fd itself.
+		// if pipelined, all the chunks are sent at once, which relies on the server handling them in order: if a later chunk fails outright,
+		// that might not be so, and the walk is done again a chunk at a time.
+		// when a later chunk fails, fd's fid exists at the end of an earlier one, and is clunked, so fd can be freed as usual.
+		private boolean walkchunks(FD ofd, FD fd, Parse p, boolean pipelined) throws ConnectionFailed, InterruptedIOException {
+			int n = p.els.length;
+			Qid[] qids = new Qid[n];
+			ArrayDeque<Request> pending = new ArrayDeque<Request>();
+			try{
+				if(pipelined)
+					for(int s = 0; s < n; s += Ninep.MAXWELEM)
+						pending.add(conn.rpcsend(chunk(ofd, fd, p, s)));
+				for(int s = 0; s < n; s += Ninep.MAXWELEM){
+					Request req = pipelined ? pending.remove() : conn.rpcsend(chunk(ofd, fd, p, s));
+					Ninep.Rwalk r = (Ninep.Rwalk)conn.rpcwait(req);
+					if(r == null && s > 0 && pipelined){
+						fd.abandon(pending);
+						clunk(fd);
+						return walkchunks(ofd, fd, p, false);
+					}
+					String err;
+					if(r != null){
+						System.arraycopy(r.qids, 0, qids, s, Math.min(r.qids.length, n-s));
+						if(r.qids.length == Math.min(Ninep.MAXWELEM, n-s))
+							continue;
+						err = walkcheck(p, Arrays.copyOf(qids, s+r.qids.length));
+					}else
+						err = errstr();
+					fd.abandon(pending);	// replies to later chunks are of no interest
+					if(s > 0)
+						clunk(fd);
+					werrstr(err);
+					return false;
 				}
-				werrstr(bs.toString());
-				return false;
+			}finally{
+				fd.abandon(pending);
 			}
+			walked(ofd, fd, p, qids);
+			return true;
+		}
+		// the Twalk for the chunk of p starting at element s
+		private Ninep.Twalk chunk(FD ofd, FD fd, Parse p, int s){
+			String[] els = Arrays.copyOfRange(p.els, s, Math.min(s+Ninep.MAXWELEM, p.els.length));
+			return ninep.new Twalk(s == 0 ? ofd.fid : fd.fid, fd.fid, els);
+		}
+		// clunk fd's fid, left by a failed walk
+		private void clunk(FD fd) throws ConnectionFailed, InterruptedIOException {
+			conn.ninepreq(ninep.new Tclunk(fd.fid));
+		}
+		// asynchronous form of walkchunks, completing with fd, or exceptionally having freed fd
+		private CompletableFuture<FD> walkchunksAsync(final FD ofd, final FD fd, final Parse p){
+			final int n = p.els.length;
+			final ArrayList<CompletableFuture<Ninep.Rmsg>> parts = new ArrayList<CompletableFuture<Ninep.Rmsg>>();
+			for(int s = 0; s < n; s += Ninep.MAXWELEM)
+				parts.add(conn.ninepreqAsync(chunk(ofd, fd, p, s)));
+			return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).handle((v, e) -> (Void)null).thenCompose(v -> {
+				Qid[] qids = new Qid[n];
+				for(int i = 0; i < parts.size(); i++){
+					int s = i*Ninep.MAXWELEM;
+					CompletableFuture<Ninep.Rmsg> part = parts.get(i);
+					final Throwable t = part.handle((r, e) -> e).join();
+					if(t != null){
+						if(s == 0){
+							fd.free();
+							return failed(t);
+						}
+						// earlier chunks were walked in full, so an Rerror might mean the server took this chunk first: walk again a chunk at a time
+						if(t instanceof IOException && !(t instanceof ConnectionFailed))
+							return clunkAsync(fd).thenCompose(u -> walknext(ofd, fd, p, 0, new Qid[n]));
+						return clunkAsync(fd).thenCompose(u -> { fd.free(); return failed(t); });
+					}
+					Ninep.Rwalk r = (Ninep.Rwalk)part.join();
+					System.arraycopy(r.qids, 0, qids, s, Math.min(r.qids.length, n-s));
+					if(r.qids.length != Math.min(Ninep.MAXWELEM, n-s)){
+						final IOException e = new IOException(walkcheck(p, Arrays.copyOf(qids, s+r.qids.length)));
+						if(s == 0){	// the first Twalk failed part way, so there is no fid to clunk
+							fd.free();
+							return failed(e);
+						}
+						return clunkAsync(fd).thenCompose(u -> { fd.free(); return failed(e); });
+					}
+				}
+				walked(ofd, fd, p, qids);
+				return CompletableFuture.completedFuture(fd);
+			});
+		}
+		// walk the chunks of p from element s a chunk at a time, without waiting, completing as walkchunksAsync
+		private CompletableFuture<FD> walknext(final FD ofd, final FD fd, final Parse p, final int s, final Qid[] qids){
+			final int n = p.els.length;
+			return conn.ninepreqAsync(chunk(ofd, fd, p, s)).<CompletableFuture<FD>>handle((r, e) -> {
+				if(e != null){
+					if(s == 0){
+						fd.free();
+						return failed(e);
+					}
+					return clunkAsync(fd).thenCompose(u -> { fd.free(); return failed(e); });
+				}
+				Qid[] got = ((Ninep.Rwalk)r).qids;
+				System.arraycopy(got, 0, qids, s, Math.min(got.length, n-s));
+				if(got.length != Math.min(Ninep.MAXWELEM, n-s)){
+					final IOException err = new IOException(walkcheck(p, Arrays.copyOf(qids, s+got.length)));
+					if(s == 0){	// as above, no fid to clunk
+						fd.free();
+						return failed(err);
+					}
+					return clunkAsync(fd).thenCompose(u -> { fd.free(); return failed(err); });
+				}
+				if(s+Ninep.MAXWELEM < n)
+					return walknext(ofd, fd, p, s+Ninep.MAXWELEM, qids);
+				walked(ofd, fd, p, qids);
+				return CompletableFuture.completedFuture(fd);
+			}).thenCompose(f -> f);
+		}
+		// clunk fd's fid, left by a failed walk, completing (normally) when the server has replied
+		private CompletableFuture<Void> clunkAsync(FD fd){
+			return conn.ninepreqAsync(ninep.new Tclunk(fd.fid)).handle((r, e) -> (Void)null);
+		}
+		// return the diagnostic for a walk that did not reach the end of p, or null if it did
+		protected final String walkcheck(Parse p, Qid[] qids){
+			if(qids.length == p.els.length)
+				return null;
+			StringBuilder bs = new StringBuilder(64);
+			bs.append('\'');
+			if(p.abs)
+				bs.append('/');
+			int i;
+			for(i = 0; i < qids.length; i++){
+				if(i != 0)
+					bs.append('/');
+				bs.append(p.els[i]);
+			}
+			if(i == 0 || (qids[i-1].qtype & Qid.QTDIR) != 0){
+				if(bs.length() != 0)
+					bs.append('/');
+				bs.append(p.els[i]);
+				bs.append('\'');
+				bs.append(' ');
+				bs.append(Edoesnotexist);	// could be permission problem
+			}else{
+				bs.append('\'');
+				bs.append(' ');
+				bs.append(Enotdir);
+			}
+			return bs.toString();
+		}
+		// record the result of a complete walk from ofd in fd
+		protected final void walked(FD ofd, FD fd, Parse p, Qid[] qids){
 			fd.name = ofd.name;
 			if(p.els.length > 0){
 				for(int i = 0; i < p.els.length; i++)
 					fd.name = addname(fd.name, p.els[i]);
-				fd.qid = r.qids[r.qids.length-1];
+				fd.qid = qids[qids.length-1];
 			}else
 				fd.qid = ofd.qid;
-			return true;
+		}
+		// walk fd to name without waiting; on failure fd is freed
+		protected CompletableFuture<FD> walkAsync(final FD fd, String name){
+			final Parse p = new Parse(name);
+			final FD ofd = walkfrom(p);
+			if(p.els.length > Ninep.MAXWELEM)
+				return walkchunksAsync(ofd, fd, p);
+			return conn.ninepreqAsync(ninep.new Twalk(ofd.fid, fd.fid, p.els)).handle((r, e) -> {
+				String err;
+				if(e == null && (err = walkcheck(p, ((Ninep.Rwalk)r).qids)) != null)
+					e = new IOException(err);
+				if(e != null){
+					fd.free();
+					throw completion(e);
+				}
+				walked(ofd, fd, p, ((Ninep.Rwalk)r).qids);
+				return fd;
+			});
 		}
 		protected FD walkfrom(Parse p){
 			FD ofd = root;
@@ -1079,8 +3317,125 @@ public class NinepClient {
 			return ofd;
 		}
 		protected boolean walk(FD fd, String name) throws ConnectionFailed, InterruptedIOException {
-			Parse p = new Parse(name);
-			return walk(walkfrom(p), fd, new Parse(name));
+			return walk(fd, new Parse(name));
+		}
+		// walk fd to p from dot or root, starting from the deepest directory on the way in the walk cache, if any
+		protected boolean walk(FD fd, Parse p) throws ConnectionFailed, InterruptedIOException {
+			FD ofd = walkfrom(p);
+			WalkCache wc = walks;
+			if(wc == null || ofd != root || dotdot(p))
+				return walk(ofd, fd, p);
+			int n = p.els.length;
+			int[] depth = new int[1];
+			FD dfd = wc.lookup(p.els, n, depth);
+			if(dfd != null){
+				conn.stats.walkhits.incrementAndGet();
+				int d = depth[0];
+				Parse rest = new Parse(p, d, n);
+				Qid dqid = dfd.qid;
+				Qid[] qids = null;
+				boolean ok = false;
+				try{
+					if(rest.els.length > Ninep.MAXWELEM)
+						ok = walk(dfd, fd, rest);
+					else
+						qids = walkqids(dfd, fd, rest);
+				}finally{
+					dfd.clunkAsync();	// drop lookup's reference
+				}
+				if(qids != null){
+					// the cached directory was walked from, so the result stands, even if the name was not found
+					Qid[] all = new Qid[d+qids.length];
+					Arrays.fill(all, 0, d, dqid);
+					System.arraycopy(qids, 0, all, d, qids.length);
+					String err = walkcheck(p, all);
+					if(err != null){
+						werrstr(err);
+						return false;
+					}
+					walked(dfd, fd, rest, qids);
+					ok = true;
+				}
+				if(ok){
+					if(d < n-1)
+						remember(wc, p, n-1);
+					return true;
+				}
+				// the cached directory might be stale: walk from the root for the definitive result,
+				// and forget the directory if it is no longer there, or a different one is
+				if(n <= Ninep.MAXWELEM){
+					qids = walkqids(root, fd, p);
+					if(qids == null || qids.length < d || qids[d-1].path != dqid.path){
+						wc.invalidate(dfd.name);
+						release(wc);
+					}
+					if(qids == null)
+						return false;
+					String err = walkcheck(p, qids);
+					if(err != null){
+						werrstr(err);
+						return false;
+					}
+					walked(root, fd, p, qids);
+					if(n > 1)
+						remember(wc, p, n-1);
+					return true;
+				}
+				wc.invalidate(dfd.name);
+				release(wc);
+			}else
+				conn.stats.walkmisses.incrementAndGet();
+			if(!walk(root, fd, p))
+				return false;
+			if(n > 1)
+				remember(wc, p, n-1);
+			return true;
+		}
+		// walk fd from ofd to p in one Twalk, returning the qids of the elements walked, fewer than p's if it failed part way, or null on error
+		private Qid[] walkqids(FD ofd, FD fd, Parse p) throws ConnectionFailed, InterruptedIOException {
+			Ninep.Rwalk r = (Ninep.Rwalk)conn.ninepreq(ninep.new Twalk(ofd.fid, fd.fid, p.els));
+			return r != null ? r.qids : null;
+		}
+		private boolean dotdot(Parse p){
+			for(String s : p.els)
+				if(s.equals(".."))
+					return true;
+			return false;
+		}
+		// walk a new fid from the root to the directory p.els[0..n) without waiting, to add it to the cache
+		private void remember(final WalkCache wc, Parse p, int n){
+			if(n > Ninep.MAXWELEM)
+				return;	// not worth several Twalks in the background
+			final String name = WalkCache.dirname(p.els, n);
+			if(!wc.start(name))
+				return;
+			final String[] els = Arrays.copyOf(p.els, n);
+			final FD dfd = conn.newfd();
+			try{
+				conn.rpcsend(ninep.new Twalk(root.fid, dfd.fid, els), req -> {
+					if(req.r instanceof Ninep.Rwalk && ((Ninep.Rwalk)req.r).qids.length == els.length){
+						Qid qid = ((Ninep.Rwalk)req.r).qids[els.length-1];
+						if((qid.qtype & Qid.QTDIR) != 0){
+							dfd.name = name;
+							dfd.qid = qid;
+							if(!wc.put(name, dfd))
+								dfd.clunkAsync();
+							else if(walks != wc)
+								wc.clear();	// replaced meanwhile
+							release(wc);
+							return;
+						}
+						wc.abandon(name);
+						dfd.clunkAsync();
+						return;
+					}
+					wc.abandon(name);
+					dfd.free();	// newfid is unused unless the walk is complete
+				});
+			}catch(IOException e){
+				wc.abandon(name);
+				dfd.free();
+			}
 		}
 		protected FD walk(String name) throws ConnectionFailed, InterruptedIOException {
 			FD fd = conn.newfd();
@@ -1150,6 +3505,9 @@ public class NinepClient {
 		Qid	qid;
 		long	offset;
 		String	name;	// not yet used
+		Readahead	ra;	// non-null: read ahead during sequential reads
+		Writebehind	wb;	// non-null: writes complete asynchronously
+		StatCache	attrs;	// non-null: stat cache of the FS that opened it, kept consistent with its writes
 
 		private FD(Conn conn, Fid fidp){
 			this.conn = conn;
@@ -1161,7 +3519,25 @@ public class NinepClient {
 			this.name = null;
 		}
 
-		// TO DO: readn?
+		// TO DO: readn?
+
+		/**
+		 * Enable or disable read-ahead.
+		 * <p>
+		 * When enabled, a read that starts where the previous read on this FD ended is taken as sequential access,
+		 * and up to <i>window</i> further reads of a full message (or iounit) are kept in flight ahead of the caller,
+		 * so that throughput is no longer limited to one message per round trip.
+		 * Read-ahead stops when the server returns a short read (eg, at end of file), and restarts on the next sequential read.
+		 * A read at any other offset, or any write, discards the data read ahead.
+		 * Directories are never read ahead.
+		 * @param	window	number of reads to keep in flight, or 0 to disable read-ahead
+		 */
+		public void setReadAhead(int window){
+			synchronized(this){
+				ra = window > 0 ? new Readahead(window) : null;
+			}
+		}
+
 
 		/**
 		 * Return the per-thread error string, which gives the error text from the most recent error.
@@ -1188,6 +3564,27 @@ public class NinepClient {
 		public void close(){
 			if(fidp != null && fidp.decref() == 0){
 				String err = lasterror.get();
+				Writebehind wb = this.wb;
+				if(wb != null){
+					wb.lock.lock();
+					try{
+						try{
+							wb.drain(this);
+						}catch(IOException e){
+							wb.err = errstr();
+						}
+						if(wb.err != null)
+							err = wb.err;	// reported through the error string
+					}finally{
+						wb.lock.unlock();
+					}
+				}
+				if(conn.asyncclunk){
+					clunklater(fidp, true);
+					fidp = null;
+					lasterror.set(err);
+					return;
+				}
 				try{
 					conn.ninepreq(ninep.new Tclunk(fid));
 				}catch(InterruptedIOException e){
@@ -1203,6 +3600,71 @@ public class NinepClient {
 			}
 		}
 
+		/**
+		 * Enable or disable write-behind.
+		 * <p>
+		 * When enabled, write copies the caller's data, sends it in as many messages as needed, and returns without waiting for replies,
+		 * keeping up to <i>window</i> writes in flight; only when the window is full does it wait, for the oldest.
+		 * A write therefore always appears to write all its data. An error or short write is instead reported by
+		 * the next write or {@link #flush}, or through the error string after {@link #close}, and the file offset is
+		 * then reset to follow the last byte known to be written.
+		 * Disabling write-behind first flushes outstanding writes.
+		 * @param	window	number of writes to keep in flight, or 0 to disable write-behind
+		 * @throws	IOException	an outstanding write failed
+		 */
+		public void setWriteBehind(int window) throws IOException {
+			flush();
+			synchronized(this){
+				wb = window > 0 ? new Writebehind(window) : null;
+			}
+		}
+
+		/**
+		 * Wait until all writes sent by write-behind have been acknowledged, and report any that failed.
+		 * Does nothing if write-behind is not enabled.
+		 * @throws	IOException	an outstanding write failed or was short
+		 */
+		public void flush() throws IOException {
+			Writebehind wb = this.wb;
+			if(wb == null)
+				return;
+			wb.lock.lock();
+			try{
+				if(fidp != null)
+					wb.drain(this);
+				wb.check();
+			}finally{
+				wb.lock.unlock();
+			}
+		}
+
+		// clunk without waiting; the fid is freed when the reply arrives
+		final void clunkAsync(){
+			if(fidp != null && fidp.decref() == 0){
+				Fid f = fidp;
+				fidp = null;
+				clunklater(f, false);
+			}
+		}
+
+		// send a Tclunk for f without waiting, freeing f when the reply arrives; if counted, count it in the connection's stats
+		private void clunklater(final Fid f, final boolean counted){
+			final Conn c = conn;
+			if(counted)
+				c.stats.clunks.incrementAndGet();
+			try{
+				c.rpcsend(ninep.new Tclunk(f.fid), req -> {
+					if(counted && req.r instanceof Ninep.Rerror)
+						c.stats.clunkerrors.incrementAndGet();
+					c.freefid(f);
+				});
+			}catch(IOException e){
+				if(counted)
+					c.stats.clunkerrors.incrementAndGet();
+				c.freefid(f);
+			}
+		}
+
 		private void open(int mode, int iounit, Qid qid){
 			this.mode = mode;
 			this.iounit = iounit;
@@ -1219,6 +3681,14 @@ public class NinepClient {
 			fid = Ninep.NOFID;
 		}
 
+		// largest count for a single Tread or Twrite
+		final int unit(){
+			int unit = conn.msize-IOHDRSZ;
+			if(iounit > 0 && iounit < unit)
+				unit = iounit;
+			return unit;
+		}
+
 		final void checkio(int mode, int n, long off) throws IOException, ClosedChannelException {
 			if(fidp == null)
 				throw new ClosedChannelException();
@@ -1254,12 +3724,60 @@ public class NinepClient {
 		 * @throws		IOException	In case of any IO error: the exception's message gives the cause.
 		 */
 		public int read(ByteBuffer dest, int n, long offset) throws IOException {
-			ByteBuffer rb = read(n, offset);
-			if(rb == null)
-				return 0;
-			n = rb.remaining();
-			dest.put(rb);
-			return n;
+			if(n > dest.remaining())
+				n = dest.remaining();
+			if(dest.isReadOnly() || this.ra != null && (qid.qtype & Qid.QTDIR) == 0){
+				ByteBuffer rb = read(n, offset);
+				if(rb == null)
+					return 0;
+				n = rb.remaining();
+				dest.put(rb);
+				return n;
+			}
+			checkio(Ninep.OREAD, n, offset);
+			Writebehind wb = this.wb;
+			if(wb != null){
+				wb.lock.lock();
+				try{
+					wb.drain(this);	// reads see earlier writes
+				}finally{
+					wb.lock.unlock();
+				}
+			}
+			return readinto(dest, n, offset);
+		}
+
+		// read by a sequence of RPCs, one at a time, the Reader putting each reply's data in place in dest
+		private int readinto(ByteBuffer dest, int n, long offset) throws IOException {
+			int count = 0;
+			while(n > 0){
+				int nreq = n;
+				if(nreq > conn.msize-IOHDRSZ)
+					nreq = conn.msize-IOHDRSZ;
+				Request req = new Request(ninep.new Tread(fid, offset, nreq));
+				req.dest = dest.slice();
+				req.dest.limit(nreq);
+				Ninep.Rread r = (Ninep.Rread)conn.rpcwait(conn.rpcsend(req));
+				if(r == null)
+					ioerror();
+				int nr = r.data.remaining();
+				if(nr > nreq){	// guard against broken servers
+					r.data.limit(r.data.position()+nreq);
+					nr = nreq;
+				}
+				if(req.inplace)
+					dest.position(dest.position()+nr);
+				else{
+					dest.put(r.data);
+					conn.release(req);
+				}
+				offset += nr;
+				n -= nr;
+				count += nr;
+				if(nr != nreq)
+					break;
+			}
+			return count;
 		}
 
 		/**
@@ -1293,12 +3811,120 @@ public class NinepClient {
 		 */
 		public ByteBuffer read(int n, long offset) throws  IOException {
 			checkio(Ninep.OREAD, n, offset);
+			Writebehind wb = this.wb;
+			if(wb != null){
+				wb.lock.lock();
+				try{
+					wb.drain(this);	// reads see earlier writes
+				}finally{
+					wb.lock.unlock();
+				}
+			}
+			Readahead ra = this.ra;
+			if(ra != null && (qid.qtype & Qid.QTDIR) == 0){
+				ra.lock.lock();
+				try{
+					ra.start(offset);
+					if(ra.seq)
+						return readahead(ra, n);
+					ByteBuffer rb = readn(n, offset);
+					if(rb != null)
+						ra.next = ra.sent = offset+rb.remaining();
+					return rb;
+				}finally{
+					ra.lock.unlock();
+				}
+			}
+			return readn(n, offset);
+		}
+
+		// satisfy a sequential read from the data read ahead, keeping the window of Treads full
+		private ByteBuffer readahead(Readahead ra, int n) throws IOException {
+			ByteBuffer result = null;
+			boolean stopped = false;
+			try{
+				while(n > 0){
+					if(ra.data == null && !ra.eof){
+						ra.fill(this);
+						Request req = ra.pending.remove();
+						Ninep.Rread r = (Ninep.Rread)conn.rpcwait(req);
+						if(r == null)
+							ioerror();
+						int nreq = ((Ninep.Tread)req.t).count;
+						ByteBuffer d = r.data;
+						if(d.remaining() > nreq)	// guard against broken servers
+							d.limit(d.position()+nreq);
+						if(d.remaining() < nreq){
+							ra.eof = stopped = true;
+							ra.pending.clear();
+							ra.sent = ra.next+d.remaining();
+						}else
+							ra.fill(this);
+						if(d.hasRemaining()){
+							ra.data = d;
+							ra.held = req;
+							ra.lent = false;
+						}else
+							conn.release(req);
+					}
+					if(ra.data == null){
+						if(result != null || stopped)
+							break;
+						// stopped earlier by a short read: try again without reading ahead, in case the file has grown
+						ByteBuffer rb = readn(n, ra.next);
+						if(rb != null){
+							if(rb.remaining() == n)
+								ra.eof = false;
+							ra.next = ra.sent = ra.next+rb.remaining();
+						}
+						return rb;
+					}
+					ByteBuffer d = ra.data;
+					int m = d.remaining();
+					if(m > n)
+						m = n;
+					ByteBuffer chunk = d.duplicate();
+					chunk.limit(chunk.position()+m);
+					d.position(d.position()+m);
+					ra.next += m;
+					n -= m;
+					if(result == null && n == 0){
+						if(!d.hasRemaining()){
+							ra.data = null;
+							ra.held = null;
+						}
+						ra.lent = true;
+						return chunk.slice();	// without copying if a single reply suffices
+					}
+					if(result == null)
+						result = ByteBuffer.allocate(m+n);
+					result.put(chunk);
+					if(!d.hasRemaining()){
+						if(!ra.lent)
+							conn.release(ra.held);
+						ra.data = null;
+						ra.held = null;
+					}
+				}
+			}catch(IOException e){
+				ra.reset();
+				throw e;
+			}
+			if(result == null)
+				return null;
+			result.flip();
+			return result;
+		}
+
+		// read by a sequence of RPCs, one at a time
+		private ByteBuffer readn(int n, long offset) throws IOException {
 			ByteBuffer result = null;
 			for(;;){
 				int nreq = n;
 				if(nreq > conn.msize-IOHDRSZ)
 					nreq = conn.msize-IOHDRSZ;
-				Ninep.Rread r = (Ninep.Rread)conn.ninepreq(ninep.new Tread(fid, offset, nreq));
+				Request req = conn.rpcsend(ninep.new Tread(fid, offset, nreq));
+				Ninep.Rread r = (Ninep.Rread)conn.rpcwait(req);
 				if(r == null)
 					ioerror();
 				int nr = r.data.remaining();
@@ -1311,11 +3937,14 @@ public class NinepClient {
 				if(nr != nreq || n == 0){
 					// return buffer without copying if only one read was required
 					if(result == null || result.position() == 0){
-						if(nr == 0)
+						if(nr == 0){
+							conn.release(req);
 							return null;
+						}
 						return r.data;
 					}
 					result.put(r.data);
+					conn.release(req);
 					result.flip();
 					return result;
 				}
@@ -1323,6 +3952,7 @@ public class NinepClient {
 				if(result == null)
 					result = ByteBuffer.allocate(n+nr);
 				result.put(r.data);
+				conn.release(req);
 			}
 		}
 
@@ -1396,9 +4026,33 @@ public class NinepClient {
 		 * @throws	IOException	In case of any IO error: the exception's message gives the cause.
 		 */
 		public int write(ByteBuffer src, int n, long offset) throws IOException {
+			return write(src, n, offset, false);
+		}
+
+		private int write(ByteBuffer src, int n, long offset, boolean advanced) throws IOException {
 			checkio(Ninep.OWRITE, n, offset);
 			if((qid.qtype & Qid.QTDIR) != 0)
 				ioerror(Eisdir);	// probably can't happen: can't open directory OWRITE
+			Readahead ra = this.ra;
+			if(ra != null){
+				ra.lock.lock();
+				try{
+					ra.reset();
+				}finally{
+					ra.lock.unlock();
+				}
+			}
+			Writebehind wb = this.wb;
+			if(wb != null)
+				return writebehind(wb, src, n, offset, advanced);
+			try{
+				return writesync(src, n, offset);
+			}finally{
+				changed();
+			}
+		}
+
+		private int writesync(ByteBuffer src, int n, long offset) throws IOException {
 			int count = 0;
 			for(;;){
 				int nreq = n;
@@ -1420,6 +4074,41 @@ public class NinepClient {
 			return count;
 		}
 
+		// copy the data and send it, waiting only when the window is full
+		private int writebehind(Writebehind wb, ByteBuffer src, int n, long offset, boolean advanced) throws IOException {
+			if(n > src.remaining())
+				n = src.remaining();
+			ByteBuffer s = src.duplicate();
+			s.limit(s.position()+n);
+			wb.lock.lock();
+			try{
+				wb.check();
+				while(s.hasRemaining()){
+					int nreq = s.remaining();
+					if(nreq > conn.msize-IOHDRSZ)
+						nreq = conn.msize-IOHDRSZ;
+					while(wb.pending.size() >= wb.window)
+						wb.retire(this);
+					// each Twrite has its own pooled copy of its data, released when it is answered
+					ByteBuffer data = conn.buffers.get(nreq);
+					ByteBuffer part = s.duplicate();
+					part.limit(part.position()+nreq);
+					data.put(part);
+					data.flip();
+					Request req = conn.rpcsend(ninep.new Twrite(fid, offset, data, nreq));
+					req.buf = data;
+					wb.pending.add(req);
+					wb.advanced.add(advanced);
+					s.position(s.position()+nreq);
+					offset += nreq;
+				}
+				src.position(src.position()+n);
+			}finally{
+				wb.lock.unlock();
+			}
+			return n;
+		}
+
 		/**
 		 * Write up to <i>n</i> bytes from the buffer <i>src</i> to the file starting at the current file offset.
 		 * <p>
@@ -1437,7 +4126,7 @@ public class NinepClient {
 			synchronized(this){ off = offset; offset += n; }	// assume it all goes
 			int r = 0;
 			try{
-				r = write(src, n, off);
+				r = write(src, n, off, true);
 			}catch(IOException e){
 				synchronized(this){ offset -= n; }
 				throw e;
@@ -1488,6 +4177,314 @@ public class NinepClient {
 			return a.length;
 		}
 
+		/**
+		 * Asynchronous form of {@link #read(int, long)}: send all the reads needed for up to n bytes from the given offset at once, without waiting.
+		 * The future completes with a ByteBuffer containing the data read (null at end-of-file), or exceptionally with an IOException.
+		 * Cancelling the future flushes the reads still outstanding.
+		 * The file's current offset is unchanged.
+		 * @param	n	maximum number of bytes to read
+		 * @param	offset	byte offset from which to read
+		 * @return	a future for the data read
+		 */
+		public CompletableFuture<ByteBuffer> readAsync(int n, long offset){
+			try{
+				checkio(Ninep.OREAD, n, offset);
+			}catch(IOException e){
+				return failed(e);
+			}
+			final ArrayList<CompletableFuture<Ninep.Rmsg>> parts = new ArrayList<CompletableFuture<Ninep.Rmsg>>();
+			final ArrayList<Integer> counts = new ArrayList<Integer>();
+			final int total = n;
+			do{
+				int nreq = n;
+				if(nreq > conn.msize-IOHDRSZ)
+					nreq = conn.msize-IOHDRSZ;
+				parts.add(conn.ninepreqAsync(ninep.new Tread(fid, offset, nreq)));
+				counts.add(nreq);
+				offset += nreq;
+				n -= nreq;
+			}while(n > 0);
+			CompletableFuture<ByteBuffer> result = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(v -> {
+				ByteBuffer b = null;
+				for(int i = 0; i < parts.size(); i++){
+					ByteBuffer data = ((Ninep.Rread)parts.get(i).join()).data;
+					int nreq = counts.get(i);
+					if(data.remaining() > nreq)	// guard against broken servers
+						data.limit(data.position()+nreq);
+					if(parts.size() == 1)
+						return data.hasRemaining() ? data : null;
+					if(b == null)
+						b = ByteBuffer.allocate(total);
+					int nr = data.remaining();
+					b.put(data);
+					if(nr != nreq)
+						break;	// short read: ignore the rest
+				}
+				b.flip();
+				return b.hasRemaining() ? b : null;
+			});
+			cancels(result, parts);
+			return result;
+		}
+
+		/**
+		 * Asynchronous form of {@link #write(ByteBuffer, int, long)}: send all the writes needed for up to n bytes at once, without waiting.
+		 * The data is taken from <i>src</i> as it is sent, so its contents must not change until the future completes,
+		 * but its position is not changed.
+		 * The future completes with the number of bytes written (stopping at the first short write), or exceptionally with an IOException.
+		 * Cancelling the future flushes the writes still outstanding.
+		 * The file's current offset is unchanged.
+		 * @param	src	Source buffer for the bytes to write.
+		 * @param	n	maximum number of bytes to write.
+		 * @param	offset	starting byte offset in file
+		 * @return	a future for the number of bytes written
+		 */
+		public CompletableFuture<Integer> writeAsync(ByteBuffer src, int n, long offset){
+			try{
+				checkio(Ninep.OWRITE, n, offset);
+				if((qid.qtype & Qid.QTDIR) != 0)
+					ioerror(Eisdir);
+			}catch(IOException e){
+				return failed(e);
+			}
+			if(n > src.remaining())
+				n = src.remaining();
+			final ArrayList<CompletableFuture<Ninep.Rmsg>> parts = new ArrayList<CompletableFuture<Ninep.Rmsg>>();
+			final ArrayList<Integer> counts = new ArrayList<Integer>();
+			ByteBuffer data = src.duplicate();
+			do{
+				int nreq = n;
+				if(nreq > conn.msize-IOHDRSZ)
+					nreq = conn.msize-IOHDRSZ;
+				parts.add(conn.ninepreqAsync(ninep.new Twrite(fid, offset, data, nreq)));
+				counts.add(nreq);
+				data.position(data.position()+nreq);
+				offset += nreq;
+				n -= nreq;
+			}while(n > 0);
+			CompletableFuture<Integer> result = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).whenComplete((v, e) -> changed()).thenApply(v -> {
+				int count = 0;
+				for(int i = 0; i < parts.size(); i++){
+					int nr = ((Ninep.Rwrite)parts.get(i).join()).count;
+					int nreq = counts.get(i);
+					if(nr > nreq)
+						nr = nreq;
+					count += nr;
+					if(nr != nreq)
+						break;
+				}
+				return count;
+			});
+			cancels(result, parts);
+			return result;
+		}
+
+		/**
+		 * Copy up to <i>count</i> bytes from the file, starting at its current offset, to the local file <i>dst</i> starting at position <i>pos</i>,
+		 * and return the number of bytes copied, which is less than <i>count</i> only at end-of-file.
+		 * <p>
+		 * The local file is mapped into memory a region at a time, and a window of Treads is kept in flight,
+		 * the data of each reply going straight into the mapped region.
+		 * The local file is extended as needed; if the copy stops early at end-of-file, it is truncated
+		 * to the end of the data copied, but no shorter than it was.
+		 * The file offset is updated to reflect the bytes copied.
+		 * @param	dst	local file open for reading and writing
+		 * @param	pos	position in the local file at which to start
+		 * @param	count	maximum number of bytes to copy
+		 * @return	number of bytes copied
+		 * @throws	IOException	In case of any IO error: the exception's message gives the cause.
+		 */
+		public long transferTo(FileChannel dst, long pos, long count) throws IOException {
+			checkio(Ninep.OREAD, 0, pos);
+			if(count < 0)
+				ioerror(Etoosmall);
+			if((qid.qtype & Qid.QTDIR) != 0)
+				ioerror(Eisdir);
+			Writebehind wb = this.wb;
+			if(wb != null){
+				wb.lock.lock();
+				try{
+					wb.drain(this);	// reads see earlier writes
+				}finally{
+					wb.lock.unlock();
+				}
+			}
+			long off;
+			synchronized(this){ off = offset; }
+			long size0 = dst.size();
+			long done = 0;
+			try{
+				while(done < count){
+					int len = (int)Math.min(count-done, Mapchunk);
+					MappedByteBuffer map = dst.map(FileChannel.MapMode.READ_WRITE, pos+done, len);
+					int got = readwindow(map, off+done, Transferwindow);
+					done += got;
+					if(got != len)
+						break;
+				}
+			}finally{
+				synchronized(this){ offset += done; }
+				if(done < count && dst.size() > size0)
+					dst.truncate(Math.max(size0, pos+done));
+			}
+			return done;
+		}
+
+		/**
+		 * Copy up to <i>count</i> bytes from the local file <i>src</i> starting at position <i>pos</i> to the file, starting at its current offset,
+		 * and return the number of bytes copied, which is less than <i>count</i> at the end of the local file, or if the server
+		 * does a short write.
+		 * <p>
+		 * The local file is mapped into memory a region at a time, and a window of Twrites is kept in flight,
+		 * each taking its data straight from the mapped region.
+		 * The file offset is updated to reflect the bytes copied.
+		 * @param	src	local file open for reading
+		 * @param	pos	position in the local file at which to start
+		 * @param	count	maximum number of bytes to copy
+		 * @return	number of bytes copied
+		 * @throws	IOException	In case of any IO error: the exception's message gives the cause.
+		 */
+		public long transferFrom(FileChannel src, long pos, long count) throws IOException {
+			checkio(Ninep.OWRITE, 0, pos);
+			if(count < 0)
+				ioerror(Etoosmall);
+			if((qid.qtype & Qid.QTDIR) != 0)
+				ioerror(Eisdir);
+			Readahead ra = this.ra;
+			if(ra != null){
+				ra.lock.lock();
+				try{
+					ra.reset();
+				}finally{
+					ra.lock.unlock();
+				}
+			}
+			Writebehind wb = this.wb;
+			if(wb != null){
+				wb.lock.lock();
+				try{
+					wb.drain(this);	// keep the writes in order
+					wb.check();
+				}finally{
+					wb.lock.unlock();
+				}
+			}
+			long avail = src.size()-pos;
+			if(count > avail)
+				count = avail < 0 ? 0 : avail;
+			long off;
+			synchronized(this){ off = offset; }
+			long done = 0;
+			try{
+				while(done < count){
+					int len = (int)Math.min(count-done, Mapchunk);
+					MappedByteBuffer map = src.map(FileChannel.MapMode.READ_ONLY, pos+done, len);
+					int got = writewindow(map, off+done, Transferwindow);
+					done += got;
+					if(got != len)
+						break;
+				}
+			}finally{
+				synchronized(this){ offset += done; }
+			}
+			return done;
+		}
+
+		// fill dest from the given offset, keeping up to window Treads in flight, each reply's data going in place;
+		// return the number of bytes read, less than requested only at end-of-file.
+		// the file offset is unchanged, and no reply can still change dest when this returns.
+		final int readwindow(ByteBuffer dest, long offset, int window) throws IOException {
+			int unit = unit();
+			int len = dest.remaining();
+			ArrayDeque<Request> pending = new ArrayDeque<Request>();
+			int sent = 0;
+			int got = 0;
+			try{
+				while(got < len){
+					while(pending.size() < window && sent < len){
+						int nreq = Math.min(unit, len-sent);
+						Request req = new Request(ninep.new Tread(fid, offset+sent, nreq));
+						ByteBuffer d = dest.duplicate();
+						d.position(d.position()+sent);
+						d.limit(d.position()+nreq);
+						req.dest = d.slice();
+						pending.add(conn.rpcsend(req));
+						sent += nreq;
+					}
+					Request req = pending.remove();
+					Ninep.Rread r = (Ninep.Rread)conn.rpcwait(req);
+					if(r == null)
+						ioerror();
+					int nreq = ((Ninep.Tread)req.t).count;
+					int nr = r.data.remaining();
+					if(nr > nreq){	// guard against broken servers
+						r.data.limit(r.data.position()+nreq);
+						nr = nreq;
+					}
+					if(!req.inplace){
+						req.dest.put(r.data);
+						conn.release(req);
+					}
+					got += nr;
+					if(nr != nreq)
+						break;
+				}
+			}finally{
+				abandon(pending);
+				dest.position(dest.position()+got);
+			}
+			return got;
+		}
+
+		// write src at the given offset, keeping up to window Twrites in flight, taking their data straight from src;
+		// return the number of bytes written, less than requested only if the server wrote short.
+		// the file offset is unchanged, and src's data is no longer needed when this returns.
+		final int writewindow(ByteBuffer src, long offset, int window) throws IOException {
+			int unit = unit();
+			int len = src.remaining();
+			ByteBuffer data = src.duplicate();
+			ArrayDeque<Request> pending = new ArrayDeque<Request>();
+			int sent = 0;
+			int got = 0;
+			try{
+				while(got < len){
+					while(pending.size() < window && sent < len){
+						int nreq = Math.min(unit, len-sent);
+						pending.add(conn.rpcsend(ninep.new Twrite(fid, offset+sent, data, nreq)));
+						data.position(data.position()+nreq);
+						sent += nreq;
+					}
+					Request req = pending.remove();
+					Ninep.Rwrite r = (Ninep.Rwrite)conn.rpcwait(req);
+					if(r == null)
+						ioerror();
+					int nreq = ((Ninep.Twrite)req.t).data.limit();
+					int nr = r.count;
+					if(nr > nreq)
+						nr = nreq;
+					got += nr;
+					if(nr != nreq)
+						break;
+				}
+			}finally{
+				abandon(pending);
+				src.position(src.position()+got);
+				changed();
+			}
+			return got;
+		}
+
+		// wait for the replies to requests abandoned by a transfer, so that none is still using its buffer
+		private void abandon(ArrayDeque<Request> pending){
+			while(!pending.isEmpty()){
+				try{
+					conn.rpcwait(pending.remove());
+				}catch(IOException e){
+					/* already failing */
+				}
+			}
+		}
+
 		/**
 		 * Read an array of <i>Dir</i> values from a directory.
 		 * <p>
@@ -1500,11 +4497,14 @@ public class NinepClient {
 		 */
 		public Dir[] dirread() throws IOException {
 			ByteBuffer b;
-			b = read(4096);		// arbitrary value bigger than largest single directory entry
+			StatCache sc = attrs;
+			long gen = sc != null ? sc.generation() : 0;
+			b = read(unit());
 			if(b == null)
 				return null;
 			ArrayList<Dir> v = new ArrayList<Dir>(b.remaining()/Ninep.STATFIXLEN);
 			dirunpack(b, v);
+			cache(sc, v, gen);
 			return dirents(v, false);
 		}
 
@@ -1519,14 +4519,92 @@ public class NinepClient {
 		 * @throws	IOException	On any error when trying to read the directory.
 		 */
 		public Dir[] dirreadall() throws IOException {
-			ByteBuffer b;
 			ArrayList<Dir> v = new ArrayList<Dir>(256);	// arbitrary
-			while((b = read(4096)) != null)
-				if(!dirunpack(b, v))
-					break;
+			DirIterator it = diriterator();
+			try{
+				while(it.hasNext())
+					v.add(it.next());
+			}catch(UncheckedIOException e){
+				throw e.getCause();
+			}finally{
+				it.close();
+			}
 			return dirents(v, true);
 		}
 
+		/**
+		 * Return an Iterator over the entries remaining in a directory, from its current offset.
+		 * <p>
+		 * The file must be a directory, open for reading, or an exception results.
+		 * Entries are read a message (or iounit) at a time, and each is decoded only when the iterator reaches it,
+		 * so the first entries are available long before a large directory has been read.
+		 * The read for the next batch of entries is in flight while the caller works through the current batch.
+		 * The file offset advances as the directory is read, and the FD should not otherwise be read until iteration ends.
+		 * The iterator's methods throw UncheckedIOException on any IO error.
+		 * @throws	IOException	On any error when trying to read the directory.
+		 */
+		public Iterator<Dir> dirIterator() throws IOException {
+			return diriterator();
+		}
+
+		/**
+		 * Return a sequential Stream of the entries remaining in a directory, from its current offset, read as for {@link #dirIterator}.
+		 * Closing the stream before its end collects the read in flight.
+		 * @throws	IOException	On any error when trying to read the directory.
+		 */
+		public Stream<Dir> dirStream() throws IOException {
+			final DirIterator it = diriterator();
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED|Spliterator.NONNULL), false).onClose(() -> it.close());
+		}
+
+		/**
+		 * Give each entry remaining in a directory, from its current offset, to <i>s</i>, until the end of the directory,
+		 * or until s returns false, and return the number of entries given.
+		 * <p>
+		 * The directory is read as for {@link #dirIterator}, but the entries are not decoded:
+		 * s sees each one through a {@link Ninep.DirView} over the data read, and decodes only the fields it needs,
+		 * so a scan that, say, looks for one name or totals the lengths creates no Dir or String for each entry.
+		 * Entries are not added to the stat cache.
+		 * @throws	IOException	On any error when trying to read the directory, or from s.
+		 */
+		public long dirscan(DirScanner s) throws IOException {
+			DirIterator it = diriterator();
+			Ninep.DirView d = it.view;
+			long n = 0;
+			try{
+				while(it.fetch()){
+					try{
+						while(d.next()){
+							n++;
+							if(!s.scan(d))
+								return n;
+						}
+					}catch(Ninep.FormatError e){
+						/* server error? skip the rest of the batch */
+					}
+				}
+				return n;
+			}finally{
+				it.close();
+			}
+		}
+
+		private DirIterator diriterator() throws IOException {
+			checkio(Ninep.OREAD, 0, 0);
+			if((qid.qtype & Qid.QTDIR) == 0)
+				ioerror(Enotdir);
+			return new DirIterator(this, unit());
+		}
+
+		// add the attributes of the directory's entries to the stat cache
+		private void cache(StatCache sc, ArrayList<Dir> v, long gen){
+			if(sc == null || name == null)
+				return;
+			for(Dir d : v)
+				if(d.name != null && d.name.length() != 0)
+					sc.put(StatCache.childname(name, d.name), d, gen);
+		}
+
 		/**
 		 * Return the directory entry (<I>Dir</i> value) that describes the current file
 		 * <p>
@@ -1534,9 +4612,23 @@ public class NinepClient {
 		 * @throws	IOException	On any error.
 		 */
 		public Dir stat() throws IOException {
+			StatCache sc = attrs;
+			String key = name;
+			long gen = 0;
+			if(sc != null && key != null){
+				Dir d = sc.get(key);
+				if(d != null){
+					conn.stats.stathits.incrementAndGet();
+					return d;
+				}
+				conn.stats.statmisses.incrementAndGet();
+				gen = sc.generation();
+			}
 			Dir d = qstat();
 			if(d == null)
 				ioerror();
+			if(sc != null && key != null)
+				sc.put(key, d, gen);
 			return d;
 		}
 
@@ -1568,9 +4660,29 @@ public class NinepClient {
 		 */
 		public boolean wstat(Dir d) throws ConnectionFailed, InterruptedIOException {
 			Ninep.Rwstat r = (Ninep.Rwstat)conn.ninepreq(ninep.new Twstat(fid, d));
+			StatCache sc = attrs;
+			if(r != null && sc != null && name != null){
+				if(isdir())
+					sc.invalidate(name);	// a rename changes the names below
+				else
+					sc.remove(name);
+				sc.remove(StatCache.parentname(name));
+			}
 			return r != null;
 		}
 
+		// the file's attributes have changed
+		final void changed(){
+			StatCache sc = attrs;
+			if(sc != null && name != null)
+				sc.remove(name);
+		}
+
+		// the file is a directory, or might be
+		final boolean isdir(){
+			return qid == null || (qid.qtype & Qid.QTDIR) != 0;
+		}
+
 		/**
 		 * Change the current file position (offset)
 		 * <p>
@@ -1699,6 +4811,52 @@ public class NinepClient {
 
 	}
 
+	// a future that has already failed
+	static final <T> CompletableFuture<T> failed(Throwable e){
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		f.completeExceptionally(e);
+		return f;
+	}
+
+	// e, wrapped for rethrowing from a dependent action
+	static final CompletionException completion(Throwable e){
+		if(e instanceof CompletionException)
+			return (CompletionException)e;
+		return new CompletionException(e);
+	}
+
+	// the result of a sequence of 9P requests, each sent when the previous one is answered;
+	// cancelling it cancels (and thus flushes) the request in progress, which a future made by thenCompose would not
+	private static class Chain<T> extends CompletableFuture<T> {
+		private volatile CompletableFuture<?>	current;
+
+		// make f the request in progress, cancelling it at once if the chain has been cancelled already
+		final <U> CompletableFuture<U> step(CompletableFuture<U> f){
+			current = f;
+			if(isCancelled())
+				f.cancel(false);
+			return f;
+		}
+
+		public boolean cancel(boolean interrupt){
+			boolean done = super.cancel(interrupt);
+			CompletableFuture<?> f = current;
+			if(f != null)
+				f.cancel(interrupt);
+			return done;
+		}
+	}
+
+	// cancelling result cancels (and thus flushes) the requests it depends on
+	static final void cancels(CompletableFuture<?> result, final ArrayList<CompletableFuture<Ninep.Rmsg>> parts){
+		result.whenComplete((v, e) -> {
+			if(e instanceof CancellationException){
+				for(CompletableFuture<Ninep.Rmsg> p : parts)
+					p.cancel(false);
+			}
+		});
+	}
+
 	static final protected int openmode(int m){
 		m &= 3;
 		if(m == Ninep.OEXEC)
@@ -1725,37 +4883,59 @@ public class NinepClient {
 		return v.toArray(new Dir[v.size()]);
 	}
 
-	/* tags are shared by all clients and all connections */
-	static private final int Tagshift = 5;
-	static private final int Tagmask = (1<<Tagshift)-1;
-	static private final int Tagwords = (64*1024)>>Tagshift;
-	static int[]	tagbits = new int[Tagwords];	// might need to be done in constructor
-
-	static protected int gettag(){
-		synchronized(tagbits){
-			for(int i = 0;  i < Tagwords; i++){
-				int v = tagbits[i];
-				if(v != ~0){
-					for(int j = 0; j <= Tagmask; j++)
-						if((v & (1<<j)) == 0){
-							tagbits[i] |= (1<<j);
-							return i*(1<<Tagshift) + j;
-						}
+	/*
+	 * tags are allocated per connection from a bitmap of 2^16 bits, one AtomicLongArray word per 64 tags.
+	 * the search starts at a rotating hint (the last word that yielded a tag), so allocation and release
+	 * are lock-free and O(1) in the usual case; tag 0 and NOTAG are never handed out.
+	 */
+	static final class Tags {
+		static private final int Tagshift = 6;
+		static private final int Tagmask = (1<<Tagshift)-1;
+		static private final int Tagwords = (64*1024)>>Tagshift;
+
+		private final AtomicLongArray	bits = new AtomicLongArray(Tagwords);
+		private final AtomicInteger	hint = new AtomicInteger(0);
+
+		Tags(){
+			set(0);
+			set(Ninep.NOTAG);
+		}
+
+		final int get(){
+			int h = hint.get();
+			for(int n = 0; n < Tagwords; n++){
+				int i = (h+n) & (Tagwords-1);
+				long v;
+				while((v = bits.get(i)) != ~0L){
+					long bit = Long.lowestOneBit(~v);
+					if(bits.compareAndSet(i, v, v | bit)){
+						if(i != h)
+							hint.set(i);
+						return (i<<Tagshift) | Long.numberOfTrailingZeros(bit);
+					}
 				}
 			}
+			return Ninep.NOTAG;
 		}
-		return Ninep.NOTAG;
-	}
-	static protected void puttag(int tag){
-		if(tag != Ninep.NOTAG)
-			synchronized(tagbits){
-				tagbits[tag >> Tagshift] &= ~(1 << (tag & Tagmask));
-			}
-	}
-	static private void settag(int tag){
-		//assert tag != Ninep.NOTAG;
-		synchronized(tagbits){
-			tagbits[tag >> Tagshift] |= 1 << (tag & Tagmask);
+
+		final void put(int tag){
+			if(tag == Ninep.NOTAG)
+				return;
+			int i = tag >> Tagshift;
+			long bit = 1L << (tag & Tagmask);
+			long v;
+			do{
+				v = bits.get(i);
+			}while(!bits.compareAndSet(i, v, v & ~bit));
+		}
+
+		private void set(int tag){
+			int i = tag >> Tagshift;
+			long bit = 1L << (tag & Tagmask);
+			long v;
+			do{
+				v = bits.get(i);
+			}while(!bits.compareAndSet(i, v, v | bit));
 		}
 	}
 
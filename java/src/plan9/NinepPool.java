@@ -0,0 +1,447 @@
+package plan9;
+
+/*
+ * pool of attached 9P connections, shared by the threads that lease them
+ */
+
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+import java.io.IOException;
+
+import plan9.lib.Dial;
+import plan9.lib.Timers;
+
+/**
+ * NinepPool keeps 9P connections that are already attached (and authenticated, if need be), for reuse.
+ * <p>
+ * Connections are kept by server address, user name and tree name. A thread that needs access to a tree
+ * takes a {@link Lease} on a connection to it, using the lease's FS for as long as it likes, and then releases the lease.
+ * Since 9P multiplexes requests on a connection, several leases (by default, up to {@link #SHARE}) share each connection,
+ * and further connections (by default, up to {@link #CONNS} for each address, user and tree) are made only when those are busy.
+ * Optionally the pool limits the requests outstanding on each connection (see {@link NinepClient.Conn#setMaxOutstanding}).
+ * <p>
+ * A connection that no lease has used for a while is checked with a Tstat of its root,
+ * and closed if the check fails, or is not answered in time. A connection idle for longer still is closed.
+ * A lease holder that sees the connection fail can say so, and the pool closes that connection when its last lease is released.
+ * <p>
+ * By default, the pool dials the address with {@link Dial#dialchan}, and attaches without authentication, or after running the
+ * protocol of a given {@link Authenticator} on the authentication file. A {@link Connector} can replace all of that.
+ * <p>
+ * Like NinepClient, the pool does not regard failure as exceptional: {@link #lease} returns null on error,
+ * setting the error string (see {@link NinepClient#errstr}).
+ * <p>
+ * For example:
+ * <pre>
+ *	NinepPool.Lease l = pool.lease(Dial.netmkaddr(host, "net", "9fs"), user, "");
+ *	if(l == null)
+ *		error(String.format("can't connect to %s: %s", host, NinepClient.errstr()));
+ *	try{
+ *		Dir d = l.fs().stat("/adm/users");
+ *		...
+ *	}finally{
+ *		l.release();
+ *	}
+ * </pre>
+ */
+public class NinepPool {
+	/** Default number of leases sharing a connection before another is made */
+	public static final int SHARE = 16;
+
+	/** Default limit on connections for each address, user and tree */
+	public static final int CONNS = 4;
+
+	/** Default time in milliseconds after which an unused connection is checked */
+	public static final long CHECK = 30*1000;
+
+	/** Default time in milliseconds after which an unused connection is closed */
+	public static final long IDLE = 5*60*1000;
+
+	private static final Ninep	ninep = new Ninep();
+
+	/**
+	 * Authenticator runs an authentication protocol for the pool's default connector.
+	 */
+	public interface Authenticator {
+		/**
+		 * Authenticate <i>uname</i>'s access to the tree <i>aname</i>, by exchanging messages with the server
+		 * over the authentication file <i>afd</i> (see {@link NinepClient.Conn#auth}).
+		 * Return true if that succeeded, or false, setting the error string, if not.
+		 */
+		boolean authenticate(NinepClient.FD afd, String uname, String aname) throws IOException;
+	}
+
+	/**
+	 * Connector makes new connections for the pool.
+	 */
+	public interface Connector {
+		/**
+		 * Make a new connection to <i>addr</i>, and attach as <i>uname</i> to the tree <i>aname</i>,
+		 * returning the resulting FS, or null, setting the error string, on error.
+		 */
+		NinepClient.FS connect(String addr, String uname, String aname);
+	}
+
+	// a pooled connection
+	private static class Entry {
+		final Slot	slot;
+		final NinepClient.FS	fs;
+		int	leases;
+		long	lastused;	// time the last lease was released
+		long	lastchecked;	// time of the last successful check
+		boolean	failed;
+		CompletableFuture<Ninep.Rmsg>	checking;	// check in progress
+		long	checkstart;
+
+		Entry(Slot slot, NinepClient.FS fs, long now){
+			this.slot = slot;
+			this.fs = fs;
+			this.lastused = this.lastchecked = now;
+		}
+	}
+
+	// connections for one address, user and tree
+	private static class Slot {
+		final String	addr;
+		final String	uname;
+		final String	aname;
+		final ArrayList<Entry>	conns = new ArrayList<Entry>();
+		int	dialling;
+
+		Slot(String addr, String uname, String aname){
+			this.addr = addr; this.uname = uname; this.aname = aname;
+		}
+	}
+
+	/**
+	 * Lease gives a thread the use of a pooled connection's FS until released.
+	 * The FS must not be closed by the lease holder.
+	 */
+	public final class Lease {
+		private Entry	e;
+
+		private Lease(Entry e){
+			this.e = e;
+		}
+
+		/** Return the attached file system */
+		public NinepClient.FS fs(){
+			Entry e = this.e;
+			if(e == null)
+				throw new IllegalStateException("NinepPool lease already released");
+			return e.fs;
+		}
+
+		/** Note that the connection has failed, so that the pool will not lease it again */
+		public void failed(){
+			synchronized(NinepPool.this){
+				if(e != null)
+					e.failed = true;
+			}
+		}
+
+		/** Give the connection back to the pool */
+		public void release(){
+			Entry e;
+			synchronized(NinepPool.this){
+				e = this.e;
+				if(e == null)
+					return;
+				this.e = null;
+				e.leases--;
+				e.lastused = msec();
+				if(!e.failed && !closed)
+					return;
+				if(e.leases > 0)
+					return;
+				e.slot.conns.remove(e);
+			}
+			discard(e);
+		}
+	}
+
+	private final Connector	connector;
+	private final HashMap<String, Slot>	slots = new HashMap<String, Slot>();
+	private final Timers	timers = new Timers();
+	private int	sweepgen;	// only the latest sweeper runs
+	private int	share = SHARE;
+	private int	conns = CONNS;
+	private int	maxoutstanding = 0;
+	private long	check = CHECK;
+	private long	idle = IDLE;
+	private boolean	closed;
+
+	/**
+	 * Make a pool whose connections are dialled by {@link Dial#dialchan}, attaching without authentication.
+	 */
+	public NinepPool(){
+		this((Authenticator)null);
+	}
+
+	/**
+	 * Make a pool whose connections are dialled by {@link Dial#dialchan}, using <i>auth</i>, if not null, to authenticate before attaching.
+	 */
+	public NinepPool(final Authenticator auth){
+		this(new Connector(){
+			public NinepClient.FS connect(String addr, String uname, String aname){
+				return dial(addr, uname, aname, auth);
+			}
+		});
+	}
+
+	/**
+	 * Make a pool whose connections are made by <i>connector</i>.
+	 */
+	public NinepPool(Connector connector){
+		this.connector = connector;
+		sweeper();
+	}
+
+	/**
+	 * Set the number of leases that share a connection before the pool makes another, if allowed.
+	 */
+	public synchronized void setShare(int n){
+		share = n > 0 ? n : 1;
+	}
+
+	/**
+	 * Set the maximum number of connections for each address, user and tree. When all are shared by the maximum number
+	 * of leases, further leases share them anyway.
+	 */
+	public synchronized void setMaxConns(int n){
+		conns = n > 0 ? n : 1;
+	}
+
+	/**
+	 * Limit each new connection to <i>n</i> outstanding requests, or no limit if <i>n</i> is zero (the default).
+	 */
+	public synchronized void setMaxOutstanding(int n){
+		maxoutstanding = n;
+	}
+
+	/**
+	 * Set the times in milliseconds after which an unused connection is checked, and closed.
+	 */
+	public void setIdle(long check, long idle){
+		synchronized(this){
+			this.check = check;
+			this.idle = idle;
+		}
+		sweeper();
+	}
+
+	/**
+	 * Lease a connection attached as <i>uname</i> to the tree <i>aname</i> on the server at <i>addr</i>,
+	 * making a new connection if need be.
+	 * Return null on error, setting the error string.
+	 */
+	public Lease lease(String addr, String uname, String aname){
+		if(aname == null)
+			aname = "";
+		String key = addr+" "+uname+" "+aname;
+		Slot slot;
+		synchronized(this){
+			if(closed){
+				NinepClient.werrstr("connection pool closed");
+				return null;
+			}
+			slot = slots.get(key);
+			if(slot == null){
+				slot = new Slot(addr, uname, aname);
+				slots.put(key, slot);
+			}
+			Entry e = null;
+			for(Entry c : slot.conns)
+				if(!c.failed && (e == null || c.leases < e.leases))
+					e = c;
+			if(e != null && (e.leases < share || slot.conns.size()+slot.dialling >= conns)){
+				e.leases++;
+				return new Lease(e);
+			}
+			slot.dialling++;
+		}
+		NinepClient.FS fs = null;
+		try{
+			fs = connector.connect(addr, uname, aname);
+		}finally{
+			synchronized(this){
+				slot.dialling--;
+			}
+		}
+		if(fs == null)
+			return null;
+		Entry e = new Entry(slot, fs, msec());
+		synchronized(this){
+			if(!closed){
+				if(maxoutstanding > 0)
+					fs.conn.setMaxOutstanding(maxoutstanding);
+				e.leases++;
+				slot.conns.add(e);
+				return new Lease(e);
+			}
+		}
+		fs.close();
+		NinepClient.werrstr("connection pool closed");
+		return null;
+	}
+
+	/**
+	 * Close all the connections not leased, and the rest as their leases are released.
+	 */
+	public void close(){
+		ArrayList<Entry> gone = new ArrayList<Entry>();
+		synchronized(this){
+			if(closed)
+				return;
+			closed = true;
+			for(Slot slot : slots.values()){
+				for(Iterator<Entry> it = slot.conns.iterator(); it.hasNext();){
+					Entry e = it.next();
+					if(e.leases == 0){
+						gone.add(e);
+						it.remove();
+					}
+				}
+			}
+		}
+		timers.shutdown();
+		for(Entry e : gone)
+			discard(e);
+	}
+
+	// run sweep periodically, replacing any previous sweeper
+	private void sweeper(){
+		long dt;
+		final int gen;
+		synchronized(this){
+			if(closed)
+				return;
+			gen = ++sweepgen;
+			dt = Math.min(check, idle)/2;
+		}
+		if(dt < 100)
+			dt = 100;
+		timers.start((int)Math.min(dt, Integer.MAX_VALUE), new Timers.Action(){
+			public void timeout(){
+				synchronized(NinepPool.this){
+					if(gen != sweepgen)
+						return;
+				}
+				sweep();
+				sweeper();
+			}
+		});
+	}
+
+	// close connections that have failed or are idle too long, and check those unused for a while
+	private void sweep(){
+		long now = msec();
+		ArrayList<Entry> gone = new ArrayList<Entry>();
+		ArrayList<Entry> tocheck = new ArrayList<Entry>();
+		synchronized(this){
+			for(Iterator<Slot> sit = slots.values().iterator(); sit.hasNext();){
+				Slot slot = sit.next();
+				for(Iterator<Entry> it = slot.conns.iterator(); it.hasNext();){
+					Entry e = it.next();
+					if(e.leases > 0)
+						continue;
+					if(e.checking != null && now-e.checkstart > check)
+						e.failed = true;	// not answered in time
+					if(e.failed || now-e.lastused > idle){
+						gone.add(e);
+						it.remove();
+					}else if(e.checking == null && now-e.lastused > check && now-e.lastchecked > check)
+						tocheck.add(e);
+				}
+				if(slot.conns.isEmpty() && slot.dialling == 0)
+					sit.remove();
+			}
+		}
+		for(Entry e : gone){
+			CompletableFuture<Ninep.Rmsg> f;
+			synchronized(this){ f = e.checking; }
+			if(f != null)
+				f.cancel(true);
+			discard(e);
+		}
+		for(Entry e : tocheck)
+			check(e, now);
+	}
+
+	// close a connection taken out of the pool: a healthy one by clunking its fids,
+	// but a failed or unanswering one by shutting it down, since the Tclunks might never be answered
+	private void discard(Entry e){
+		boolean failed;
+		synchronized(this){ failed = e.failed || e.checking != null; }
+		if(failed)
+			e.fs.conn.shutdown();
+		else
+			e.fs.close();
+	}
+
+	// send a Tstat of e's root, noting its success or failure when the reply arrives
+	private void check(final Entry e, long now){
+		NinepClient.FD root = e.fs.root;
+		if(root == null){
+			synchronized(this){ e.failed = true; }
+			return;
+		}
+		CompletableFuture<Ninep.Rmsg> f = e.fs.conn.ninepreqAsync(ninep.new Tstat(root.fid));
+		synchronized(this){
+			e.checking = f;
+			e.checkstart = now;
+		}
+		f.whenComplete((r, t) -> {
+			synchronized(this){
+				e.checking = null;
+				if(t != null)
+					e.failed = true;
+				else
+					e.lastchecked = msec();
+			}
+		});
+	}
+
+	// dial, authenticate if need be, and attach
+	private static NinepClient.FS dial(String addr, String uname, String aname, Authenticator auth){
+		ByteChannel c = Dial.dialchan(addr, null);
+		if(c == null){
+			NinepClient.werrstr(Dial.errstr());
+			return null;
+		}
+		NinepClient.Conn conn = new NinepClient().new Conn(c);
+		try{
+			NinepClient.FD afd = null;
+			if(auth != null){
+				afd = conn.auth(uname, aname);
+				if(afd != null){
+					boolean ok = auth.authenticate(afd, uname, aname);
+					if(!ok){
+						String err = NinepClient.errstr();
+						afd.close();
+						NinepClient.werrstr(err);
+						conn.shutdown();
+						return null;
+					}
+				}
+			}
+			NinepClient.FS fs = conn.attach(afd, uname, aname);
+			if(afd != null)
+				afd.close();
+			if(fs == null)
+				conn.shutdown();
+			return fs;
+		}catch(IOException e){
+			NinepClient.werrstr(e.getMessage());
+			conn.shutdown();
+			return null;
+		}
+	}
+
+	private static long msec(){
+		return System.nanoTime()/1000000;
+	}
+}
@@ -0,0 +1,316 @@
+package plan9;
+
+/*
+ * parallel transfer of large files across several 9P connections
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import plan9.lib.Dial;
+import plan9.lib.Misc;
+
+/**
+ * NinepStripe reads and writes large files over several 9P connections at once, to the same server,
+ * so that a transfer is not limited by one connection's stream and the single thread that reads its replies.
+ * <p>
+ * The file is opened separately on each connection. The part of the file to transfer is divided into blocks
+ * (see {@link #setBlockSize}), and the blocks are dealt round-robin to the connections, each connection having its own thread,
+ * which keeps several Treads or Twrites in flight for its current block.
+ * Data read can be assembled in order in a single buffer, or handed to a {@link Sink} a block at a time.
+ * <p>
+ * For example:
+ * <pre>
+ *	NinepStripe s = NinepStripe.dial(Dial.netmkaddr(host, "net", "9fs"), user, "", 4);
+ *	if(s == null)
+ *		error(String.format("can't dial %s: %s", host, NinepClient.errstr()));
+ *	s.read("/big/file", 0, length, sink);
+ *	s.close();
+ * </pre>
+ */
+public class NinepStripe {
+	/** Default block size in bytes */
+	public static final int BLOCK = 1024*1024;
+
+	// Treads or Twrites each connection keeps in flight
+	static final int	Window = 8;
+
+	// state of a connection's job in a transfer
+	static final int	Queued = 0, Running = 1, Done = 2;
+
+	/**
+	 * Sink accepts the data read by {@link NinepStripe#read(String, long, long, Sink)}, a block at a time.
+	 */
+	public interface Sink {
+		/**
+		 * Accept the <i>data</i> read from the file at <i>offset</i>.
+		 * Blocks arrive in no particular order, and put is called concurrently by the threads of different connections.
+		 * The buffer, which might be direct, is reused once put returns.
+		 */
+		void put(long offset, ByteBuffer data) throws IOException;
+	}
+
+	// transfer len bytes of one block at offset, returning the count transferred, short only at end-of-file or on a short write
+	private interface Part {
+		int transfer(NinepClient.FD fd, long offset, int len) throws IOException;
+	}
+
+	private final NinepClient.FS[]	fs;
+	private final ExecutorService	workers;
+	private volatile int	blocksize = BLOCK;
+	private final ThreadLocal<ByteBuffer>	scratch = new ThreadLocal<ByteBuffer>();	// each worker's block buffer for read with a Sink
+
+	/**
+	 * Stripe transfers across the file systems <i>fs</i>, which should be attachments to the same tree on distinct connections.
+	 */
+	public NinepStripe(NinepClient.FS[] fs){
+		if(fs.length == 0)
+			throw new IllegalArgumentException("NinepStripe needs at least one connection");
+		this.fs = fs.clone();
+		this.workers = Executors.newFixedThreadPool(fs.length, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				Misc.nominate(t, NinepStripe.class);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Dial <i>dest</i> (see {@link Dial#dialchan}) <i>nconn</i> times, and attach as <i>uname</i> to the tree <i>aname</i> on each connection,
+	 * returning a NinepStripe that uses them all, or null on error, setting the error string (see {@link NinepClient#errstr}).
+	 * The server must not require authentication.
+	 */
+	public static NinepStripe dial(String dest, String uname, String aname, int nconn){
+		if(nconn <= 0){
+			NinepClient.werrstr("NinepStripe needs at least one connection");
+			return null;
+		}
+		NinepClient nc = new NinepClient();
+		NinepClient.FS[] fs = new NinepClient.FS[nconn];
+		for(int i = 0; i < nconn; i++){
+			ByteChannel c = Dial.dialchan(dest, null);
+			if(c == null){
+				NinepClient.werrstr(Dial.errstr());
+				closeall(fs);
+				return null;
+			}
+			NinepClient.Conn conn = nc.new Conn(c);
+			try{
+				fs[i] = conn.attach(null, uname, aname);
+			}catch(IOException e){
+				NinepClient.werrstr(e.getMessage());
+			}
+			if(fs[i] == null){
+				conn.shutdown();
+				closeall(fs);
+				return null;
+			}
+		}
+		return new NinepStripe(fs);
+	}
+
+	/**
+	 * Set the size in bytes of the blocks dealt to the connections, by default {@link #BLOCK}.
+	 */
+	public void setBlockSize(int n){
+		if(n <= 0)
+			throw new IllegalArgumentException("NinepStripe block size must be positive");
+		blocksize = n;
+	}
+
+	/** Return the number of connections */
+	public int connections(){
+		return fs.length;
+	}
+
+	/**
+	 * Read up to <i>count</i> bytes of the file <i>path</i> starting at <i>offset</i>, giving each block to <i>sink</i> as it arrives,
+	 * and return the number of bytes read, which is less than count only if the file ends first.
+	 * @throws	IOException	In case of any IO error, including errors from the sink: the exception's message gives the cause.
+	 */
+	public long read(String path, long offset, long count, final Sink sink) throws IOException {
+		return stripe(path, Ninep.OREAD, offset, count, new Part(){
+			public int transfer(NinepClient.FD fd, long off, int len) throws IOException {
+				ByteBuffer b = scratch.get();
+				if(b == null || b.capacity() < len){	// first use, or the block size has grown
+					b = ByteBuffer.allocateDirect(Math.max(len, blocksize));
+					scratch.set(b);
+				}
+				b.clear();
+				b.limit(len);
+				int n = fd.readwindow(b, off, Window);
+				b.flip();
+				if(n > 0)
+					sink.put(off, b);
+				return n;
+			}
+		});
+	}
+
+	/**
+	 * Return a ByteBuffer holding up to <i>count</i> bytes of the file <i>path</i> starting at <i>offset</i>,
+	 * which is short only if the file ends first, or null at end-of-file.
+	 * @throws	IOException	In case of any IO error: the exception's message gives the cause.
+	 */
+	public ByteBuffer read(String path, final long offset, int count) throws IOException {
+		final ByteBuffer result = ByteBuffer.allocate(count);
+		long n = stripe(path, Ninep.OREAD, offset, count, new Part(){
+			public int transfer(NinepClient.FD fd, long off, int len) throws IOException {
+				return fd.readwindow(slice(result, (int)(off-offset), len), off, Window);
+			}
+		});
+		if(n == 0)
+			return null;
+		result.limit((int)n);
+		return result;
+	}
+
+	/**
+	 * Write the bytes remaining in <i>src</i> to the file <i>path</i> starting at <i>offset</i>,
+	 * and return the number of bytes written, which is less than requested only if the server writes short.
+	 * The buffer's position is advanced by the number of bytes written.
+	 * @throws	IOException	In case of any IO error: the exception's message gives the cause.
+	 */
+	public long write(String path, ByteBuffer src, final long offset) throws IOException {
+		final ByteBuffer data = src.slice();
+		long n = stripe(path, Ninep.OWRITE, offset, data.remaining(), new Part(){
+			public int transfer(NinepClient.FD fd, long off, int len) throws IOException {
+				return fd.writewindow(slice(data, (int)(off-offset), len), off, Window);
+			}
+		});
+		src.position(src.position()+(int)n);
+		return n;
+	}
+
+	/**
+	 * Close all the connections.
+	 */
+	public void close(){
+		workers.shutdown();
+		closeall(fs);
+	}
+
+	// open path on each connection, then transfer count bytes from offset, block i on connection i%K;
+	// return the number of bytes transferred before the first short block
+	private long stripe(String path, int mode, final long offset, final long count, final Part part) throws IOException {
+		final int nc = fs.length;
+		final long bs = blocksize;
+		final NinepClient.FD[] fds = new NinepClient.FD[nc];
+		final AtomicLong end = new AtomicLong(offset+count);	// lowest end of a short block
+		final AtomicIntegerArray state = new AtomicIntegerArray(nc);	// Queued, Running or Done, for each job
+		final CountDownLatch done = new CountDownLatch(nc);
+		ArrayList<Future<Void>> jobs = new ArrayList<Future<Void>>();
+		try{
+			for(int i = 0; i < nc; i++){
+				fds[i] = fs[i].open(path, mode);
+				if(fds[i] == null)
+					NinepClient.ioerror(NinepClient.errstr());
+			}
+			for(int i = 0; i < nc; i++){
+				final int k = i;
+				jobs.add(workers.submit(new Callable<Void>(){
+					public Void call() throws IOException {
+						if(!state.compareAndSet(k, Queued, Running))
+							return null;	// cancelled before it started
+						try{
+							for(long b = offset+k*bs; b < end.get(); b += nc*bs){
+								int len = (int)Math.min(bs, offset+count-b);
+								int n = part.transfer(fds[k], b, len);
+								if(n != len)
+									lower(end, b+n);
+							}
+						}catch(IOException e){
+							lower(end, Long.MIN_VALUE);	// stop the others
+							throw e;
+						}finally{
+							state.set(k, Done);
+							done.countDown();
+						}
+						return null;
+					}
+				}));
+			}
+			IOException err = null;
+			for(Future<Void> job : jobs){
+				try{
+					job.get();
+				}catch(ExecutionException e){
+					if(err == null){
+						Throwable t = e.getCause();
+						if(t instanceof IOException)
+							err = (IOException)t;
+						else
+							err = new IOException(t.toString(), t);
+					}
+				}
+			}
+			if(err != null)
+				throw err;
+			return end.get()-offset;
+		}catch(InterruptedException e){
+			lower(end, Long.MIN_VALUE);
+			for(Future<Void> job : jobs)
+				job.cancel(true);
+			// a cancelled job's get returns at once, but one already running might still be using its FD
+			for(int i = 0; i < nc; i++)
+				if(state.compareAndSet(i, Queued, Done))
+					done.countDown();
+			awaitquietly(done);
+			throw new InterruptedIOException("interrupted");
+		}finally{
+			for(NinepClient.FD fd : fds)
+				if(fd != null)
+					fd.close();
+		}
+	}
+
+	// wait for the latch, ignoring interrupts, but keeping the thread's interrupt status
+	private static void awaitquietly(CountDownLatch l){
+		boolean intr = false;
+		for(;;){
+			try{
+				l.await();
+				break;
+			}catch(InterruptedException e){
+				intr = true;
+			}
+		}
+		if(intr)
+			Thread.currentThread().interrupt();
+	}
+
+	private static void lower(AtomicLong v, long n){
+		long o;
+		while(n < (o = v.get()) && !v.compareAndSet(o, n)){
+			/* skip */
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer b, int off, int len){
+		ByteBuffer s = b.duplicate();
+		s.position(b.position()+off);
+		s.limit(b.position()+off+len);
+		return s.slice();
+	}
+
+	private static void closeall(NinepClient.FS[] fs){
+		for(NinepClient.FS f : fs)
+			if(f != null)
+				f.close();
+	}
+}
@@ -0,0 +1,109 @@
+package plan9.lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers is a pool of ByteBuffers for message packing and unpacking, to reduce allocation when messages are frequent.
+ * <p>
+ * Buffers are kept in size classes that are powers of two, from 256 bytes up to the pool's maximum size,
+ * which is normally a connection's negotiated message size. A request for a larger buffer is satisfied by a fresh
+ * allocation that the pool will not keep. Each size class holds a bounded number of free buffers.
+ * The buffers are on the Java heap, or optionally direct.
+ * <p>
+ * The contract is simple: a buffer obtained by {@link #get} belongs to the caller until it is given back by {@link #put}.
+ * After that, the caller must not use the buffer again, or any slice or duplicate of it, because its contents
+ * can change at any time. Buffers need not be given back: one that is dropped is collected as garbage in the usual way.
+ * <p>
+ * Get and put can be called concurrently without locking.
+ */
+public class Buffers {
+	private static final int Minshift = 8;	// smallest class: 256 bytes
+	private static final int Keepbytes = 4*1024*1024;	// bound on bytes kept free in each class
+	private static final int Keepmax = 256;	// bound on buffers kept free in each class
+
+	private final int	maxshift;
+	private final boolean	direct;
+	private final ConcurrentLinkedQueue<ByteBuffer>[]	free;
+	private final AtomicInteger[]	nfree;
+
+	/**
+	 * Create a pool of buffers up to <i>max</i> bytes, allocated as direct buffers if <i>direct</i> is true.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public Buffers(int max, boolean direct){
+		int shift = Minshift;
+		while((1<<shift) < max)
+			shift++;
+		this.maxshift = shift;
+		this.direct = direct;
+		int n = maxshift-Minshift+1;
+		free = new ConcurrentLinkedQueue[n];
+		nfree = new AtomicInteger[n];
+		for(int i = 0; i < n; i++){
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			nfree[i] = new AtomicInteger(0);
+		}
+	}
+
+	/** Return true iff the pool's buffers are direct */
+	public final boolean isDirect(){
+		return direct;
+	}
+
+	/**
+	 * Return a buffer with position 0 and limit <i>n</i>, taken from the pool if possible.
+	 */
+	public final ByteBuffer get(int n){
+		int c = sizeclass(n);
+		if(c < 0)
+			return allocate(n);
+		ByteBuffer b = free[c].poll();
+		if(b == null)
+			b = allocate(1<<(c+Minshift));
+		else
+			nfree[c].decrementAndGet();
+		b.clear();
+		b.limit(n);
+		return b;
+	}
+
+	/**
+	 * Give a buffer obtained from {@link #get} back to the pool.
+	 * A buffer that did not come from the pool, or that the pool has no room to keep, is dropped.
+	 */
+	public final void put(ByteBuffer b){
+		if(b == null || b.isDirect() != direct)
+			return;
+		int cap = b.capacity();
+		if((cap & (cap-1)) != 0)
+			return;	// not a size class
+		int c = sizeclass(cap);
+		if(c < 0 || (1<<(c+Minshift)) != cap)
+			return;
+		int keep = Keepbytes/cap;
+		if(keep > Keepmax)
+			keep = Keepmax;
+		if(nfree[c].incrementAndGet() > keep){
+			nfree[c].decrementAndGet();
+			return;
+		}
+		free[c].offer(b);
+	}
+
+	private final int sizeclass(int n){
+		int shift = Minshift;
+		while((1<<shift) < n)
+			shift++;
+		if(shift > maxshift)
+			return -1;
+		return shift-Minshift;
+	}
+
+	private final ByteBuffer allocate(int n){
+		if(direct)
+			return ByteBuffer.allocateDirect(n);
+		return ByteBuffer.allocate(n);
+	}
+}
@@ -4,7 +4,16 @@ import java.lang.Integer;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
 import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
 
 // Plan 9/Inferno Dial interface to make network connections
@@ -12,8 +21,9 @@ import java.net.*;
 
 /**
  * Dial makes network connections, using a network-independent textual form of addressing services on hosts.
- * It is based on Plan 9's <i>dial</i>(2). The current implementation supports only TCP/IP,
- * but the same interface can support non-Internet protocols without change.
+ * It is based on Plan 9's <i>dial</i>(2). The current implementation supports TCP/IP,
+ * Unix-domain sockets (network <b>unix</b>), and connections within the Java process (network <b>mem</b>, see {@link #memlisten}),
+ * and the same interface can support other protocols without change.
  * It encapsulates the translation of textual forms of host and service names into IP addresses and port numbers,
  * allowing network connections to be made with a single call. Unlike <code>new Socket(hostname, port)</code>,
  * which is also a single operation, Dial guarantees that it will try all addresses for a host, has an interface not limited to IP networking, and will translate
@@ -63,6 +73,23 @@ public class Dial {
 		put("tcp!infsched", 6678);	// owen
 	}};
 
+	/**
+	 * Dial the given destination network address, as for {@link #dial}, but return any kind of full-duplex channel,
+	 * which allows the networks whose connections are not sockets.
+	 * In particular, an address of the form <b>mem!</b><i>name</i> connects to the listener announced
+	 * in the same Java process by {@link #memlisten}(<i>name</i>), bypassing the network entirely.
+	 * The channel is suitable for a 9P or Styx client connection.
+	 *
+	 * @param	dest	network address in the form <i>net</i><b>!</b><i>host</i><b>!</b><i>service</i>, <b>unix!</b><i>path</i> or <b>mem!</b><i>name</i>
+	 * @param	local	leave null or "" to use any local port (other values reserved for future use)
+	 * @return		a channel representing a full-duplex connection, or null on any error
+	 */
+	static public final ByteChannel dialchan(String dest, String local){
+		if(dest.startsWith("mem!"))
+			return memdial(dest.substring(4));
+		return dial(dest, local);
+	}
+
 	/**
 	 * Dial (make a network connection to) the given destination network address.
 	 * The address (or "dial string") has the form <i>net</i><b>!</b><i>host</i><b>!</b><i>service</i>,
@@ -79,12 +106,22 @@ public class Dial {
 	 * Dial tries each possible network address for a host (a host name might correspond to several network addresses),
 	 * until one succeeds, or all have failed. On success, dial returns a SocketChannel value giving a full-duplex
 	 * connection to the remote host. On an error, it returns null, setting the error string to the diagnostic.
+	 * <p>
+	 * The address <b>unix!</b><i>path</i> instead connects to the Unix-domain socket <i>path</i>,
+	 * which needs a Java runtime that supports them (Java 16 or later).
+	 * Connections within the process (<b>mem</b>) are not sockets, and need {@link #dialchan}.
 	 *
 	 * @param	dest	network address in the form <i>net</i><b>!</b><i>host</i><b>!</b><i>service</i>.
 	 * @param	local	leave null or "" to use any local port (other values reserved for future use)
 	 * @return		a SocketChannel value representing a full-duplex connection to the remote host, or null on any error
 	 */
 	static public final SocketChannel dial(String dest, String local){
+		if(dest.startsWith("unix!"))
+			return unixdial(dest.substring(5));
+		if(dest.startsWith("mem!")){
+			werrstr("mem connections are not sockets: use dialchan: "+dest);
+			return null;
+		}
 		StringTokenizer flds = new StringTokenizer(dest, "!");
 		int n = flds.countTokens();
 		if(n < 3){
@@ -130,6 +167,151 @@ public class Dial {
 		return null;
 	}
 
+	// connect to a Unix-domain socket; found by reflection, to allow Java runtimes before 16
+	static private SocketChannel unixdial(String path){
+		SocketChannel sc;
+		SocketAddress addr;
+		try{
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			addr = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+			sc = (SocketChannel)SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		}catch(Exception e){
+			werrstr("unix domain sockets not supported: "+e);
+			return null;
+		}
+		try{
+			sc.connect(addr);
+			return sc;
+		}catch(IOException e){
+			werrstr(e.getMessage());
+			try{
+				sc.close();
+			}catch(IOException e2){
+				// we don't care
+			}
+			return null;
+		}
+	}
+
+	private static final ConcurrentHashMap<String,Memlistener> memnames = new ConcurrentHashMap<String,Memlistener>();
+
+	/**
+	 * Memlistener receives the connections dialled to a <b>mem</b> name announced by {@link Dial#memlisten}.
+	 */
+	public static final class Memlistener {
+		private final String	name;
+		private final LinkedBlockingQueue<ByteChannel>	calls = new LinkedBlockingQueue<ByteChannel>();
+		private volatile boolean	closed;
+
+		private Memlistener(String name){
+			this.name = name;
+		}
+
+		/**
+		 * Wait for the next connection, and return its channel.
+		 * @throws	InterruptedIOException	if interrupted while waiting
+		 * @throws	ClosedChannelException	if the listener has been closed
+		 */
+		public ByteChannel accept() throws IOException {
+			ByteChannel c;
+			try{
+				c = calls.take();
+			}catch(InterruptedException e){
+				throw new InterruptedIOException("interrupted");
+			}
+			if(c == Closed){
+				calls.offer(Closed);	// for any other waiter
+				throw new ClosedChannelException();
+			}
+			return c;
+		}
+
+		/** Withdraw the name, so that it can no longer be dialled, and stop accept */
+		public void close(){
+			if(!closed){
+				closed = true;
+				memnames.remove(name, this);
+				calls.offer(Closed);
+			}
+		}
+	}
+	private static final ByteChannel Closed = new Memchan(null, null);
+
+	/**
+	 * Announce <i>name</i> in the <b>mem</b> network of this Java process, so that
+	 * {@link #dialchan}("mem!"+<i>name</i>) connects to it, returning a Memlistener that accepts the connections,
+	 * or null if the name is already announced, setting the error string.
+	 * Each connection is a pair of {@link Pipe}s, so data passes directly between the two ends, without a network stack.
+	 */
+	static public final Memlistener memlisten(String name){
+		Memlistener l = new Memlistener(name);
+		if(memnames.putIfAbsent(name, l) != null){
+			werrstr("mem name in use: "+name);
+			return null;
+		}
+		return l;
+	}
+
+	static private ByteChannel memdial(String name){
+		Memlistener l = memnames.get(name);
+		if(l == null){
+			werrstr("connection refused: mem!"+name);
+			return null;
+		}
+		Pipe up, down;
+		try{
+			up = Pipe.open();
+			down = Pipe.open();
+		}catch(IOException e){
+			werrstr(e.getMessage());
+			return null;
+		}
+		Memchan theirs = new Memchan(up.source(), down.sink());
+		Memchan ours = new Memchan(down.source(), up.sink());
+		l.calls.offer(theirs);
+		if(l.closed && l.calls.remove(theirs)){	// closed as we called, so it won't be accepted
+			closequietly(theirs);
+			closequietly(ours);
+			werrstr("connection refused: mem!"+name);
+			return null;
+		}
+		return ours;
+	}
+
+	private static void closequietly(ByteChannel c){
+		try{
+			c.close();
+		}catch(IOException e){
+			// we don't care
+		}
+	}
+
+	// one end of a mem connection: reads from one pipe and writes to the other
+	private static final class Memchan implements ByteChannel, GatheringByteChannel {
+		private final Pipe.SourceChannel	in;
+		private final Pipe.SinkChannel	out;
+
+		Memchan(Pipe.SourceChannel in, Pipe.SinkChannel out){
+			this.in = in;
+			this.out = out;
+		}
+
+		public int read(ByteBuffer b) throws IOException { return in.read(b); }
+		public int write(ByteBuffer b) throws IOException { return out.write(b); }
+		public long write(ByteBuffer[] bufs) throws IOException { return out.write(bufs); }
+		public long write(ByteBuffer[] bufs, int offset, int length) throws IOException { return out.write(bufs, offset, length); }
+		public boolean isOpen(){ return in.isOpen() && out.isOpen(); }
+
+		// closing out gives the other end end-of-file
+		public void close() throws IOException {
+			try{
+				out.close();
+			}finally{
+				in.close();
+			}
+		}
+	}
+
 	/**
 	 * Add default network and service components as required to an address in {@link Dial#dial}'s form.
 	 * The address has {@link Dial#dial}'s <i>net</i><b>!</b><i>host</i><b>!</b><i>service</i> form,
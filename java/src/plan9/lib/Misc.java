@@ -73,7 +73,12 @@ public class Misc {
 
 	// give a Thread a better name than the JVM manages
 	public static void nominate(Thread t){
-		t.setName(String.format("%s id#%d", t.getClass().getName(), t.getId()));
+		nominate(t, t.getClass());
+	}
+
+	// name a Thread after the class of the code it runs
+	public static void nominate(Thread t, Class<?> c){
+		t.setName(String.format("%s id#%d", c.getName(), t.getId()));
 	}
 
 	// ensure an fd is closed, never mind what happens: we're done with it
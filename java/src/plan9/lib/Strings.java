@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.StringTokenizer;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 // from styx-n-9p.googlecode.com (MIT licence)
 
@@ -125,6 +126,11 @@ public class Strings {
 	/** Convert the contents of a ByteBuffer into a string */
 	public static String S(ByteBuffer a){
 		try{
+			if(!a.hasArray()){	// direct buffer
+				byte[] b = new byte[a.remaining()];
+				a.duplicate().get(b);
+				return new String(b, "UTF-8");
+			}
 			return new String(a.array(), a.arrayOffset()+a.position(), a.remaining(), "UTF-8");
 		}catch(java.io.UnsupportedEncodingException e){
 			throw new RuntimeException("UTF-8 encoding not supported");
@@ -142,8 +148,11 @@ public class Strings {
 		}
 	}
 
-	/** Return the length of a string in its utf-8 encoding */
-	public static final int utflen(String s){	// 16-bit unicode only
+	/**
+	 * Return the length of a string in its utf-8 encoding, as produced by {@link #bytes} and {@link #pututf}.
+	 * A surrogate pair is one character of 4 bytes; an unpaired surrogate is encoded as '?'.
+	 */
+	public static final int utflen(String s){
 		int n, l;
 
 		if(s == null)
@@ -153,10 +162,90 @@ public class Strings {
 			int c;
 			if((c = s.charAt(i)) > 0x7F){
 				n++;
-				if(c > 0x7FF)
-					n++;
+				if(c > 0x7FF){
+					if(Character.isHighSurrogate((char)c) && i+1 < l && Character.isLowSurrogate(s.charAt(i+1))){
+						n++;	// 2 chars, 4 bytes
+						i++;
+					}else if(!Character.isSurrogate((char)c))
+						n++;
+					else
+						n--;	// '?'
+				}
 			}
 		}
 		return n;
 	}
+
+	/**
+	 * Put the utf-8 encoding of <i>s</i> in <i>b</i> at its position, which is advanced,
+	 * and return the number of bytes put, which is {@link #utflen}(s).
+	 * Unpaired surrogates are encoded as '?', as by {@link #bytes}.
+	 */
+	public static final int pututf(ByteBuffer b, String s){
+		if(s == null)
+			return 0;
+		int l = s.length();
+		int p = b.position();
+		int i = 0;
+		if(b.hasArray()){	// ASCII prefix straight into the array
+			byte[] a = b.array();
+			int o = b.arrayOffset()+p;
+			int e = Math.min(l, b.remaining());
+			for(; i < e; i++){
+				char c = s.charAt(i);
+				if(c > 0x7F)
+					break;
+				a[o+i] = (byte)c;
+			}
+			b.position(p+i);
+		}
+		for(; i < l; i++){
+			int c = s.charAt(i);
+			if(c <= 0x7F)
+				b.put((byte)c);
+			else if(c <= 0x7FF){
+				b.put((byte)(0xC0 | (c>>6)));
+				b.put((byte)(0x80 | (c & 0x3F)));
+			}else if(!Character.isSurrogate((char)c)){
+				b.put((byte)(0xE0 | (c>>12)));
+				b.put((byte)(0x80 | ((c>>6) & 0x3F)));
+				b.put((byte)(0x80 | (c & 0x3F)));
+			}else if(Character.isHighSurrogate((char)c) && i+1 < l && Character.isLowSurrogate(s.charAt(i+1))){
+				c = Character.toCodePoint((char)c, s.charAt(++i));
+				b.put((byte)(0xF0 | (c>>18)));
+				b.put((byte)(0x80 | ((c>>12) & 0x3F)));
+				b.put((byte)(0x80 | ((c>>6) & 0x3F)));
+				b.put((byte)(0x80 | (c & 0x3F)));
+			}else
+				b.put((byte)'?');
+		}
+		return b.position()-p;
+	}
+
+	/**
+	 * Return the string whose utf-8 encoding is the <i>n</i> bytes of <i>b</i> at index <i>i</i>, without changing the buffer's position.
+	 * Text that is all ASCII, as most 9P names are, is converted without general decoding.
+	 */
+	public static final String utf(ByteBuffer b, int i, int n){
+		if(b.hasArray()){
+			byte[] a = b.array();
+			int o = b.arrayOffset()+i;
+			if(isascii(a, o, n))
+				return new String(a, o, n, StandardCharsets.ISO_8859_1);	// each byte is its own character
+			return new String(a, o, n, StandardCharsets.UTF_8);
+		}
+		byte[] a = new byte[n];
+		for(int k = 0; k < n; k++)
+			a[k] = b.get(i+k);
+		if(isascii(a, 0, n))
+			return new String(a, StandardCharsets.ISO_8859_1);
+		return new String(a, StandardCharsets.UTF_8);
+	}
+
+	private static final boolean isascii(byte[] a, int o, int n){
+		for(int k = 0; k < n; k++)
+			if(a[o+k] < 0)
+				return false;
+		return true;
+	}
 }
@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import plan9.lib.Strings;
+
+// test utf-8 length, encoding and decoding against the Java encoder
+public class TUtf {
+	static int errors;
+
+	public static void main(String[] args){
+		String[] tests = {
+			"",
+			"plain ascii name",
+			"caf\u00e9 \u00fcber",	// 2 bytes
+			"\u65e5\u672c\u8a9e \u20ac",	// 3 bytes
+			"\ud83d\ude00 \ud834\udd1e",	// surrogate pairs, 4 bytes
+			"a\ud800b",	// unpaired high surrogate
+			"a\udc00b",	// unpaired low surrogate
+			"\udc00\ud800",	// pair in the wrong order
+			"x\ud800",	// high surrogate at the end
+			"ascii prefix then \u00e9\u65e5\ud83d\ude00",
+		};
+		if(args.length > 0)
+			tests = args;
+		for(String s : tests){
+			check(s, ByteBuffer.allocate(Strings.utflen(s)+8));
+			check(s, ByteBuffer.allocateDirect(Strings.utflen(s)+8));
+		}
+		if(errors != 0){
+			System.out.println(errors+" errors");
+			System.exit(1);
+		}
+		System.out.println("ok");
+	}
+
+	static void check(String s, ByteBuffer b){
+		byte[] want = s.getBytes(StandardCharsets.UTF_8);
+		int n = Strings.utflen(s);
+		if(n != want.length)
+			error(s, "utflen "+n+" want "+want.length);
+		b.position(3);	// not at the start
+		int put = Strings.pututf(b, s);
+		if(put != want.length || b.position() != 3+want.length)
+			error(s, "pututf put "+put+" position "+b.position()+" want "+want.length);
+		byte[] got = new byte[put];
+		for(int i = 0; i < put; i++)
+			got[i] = b.get(3+i);
+		if(!Arrays.equals(got, want))
+			error(s, "pututf bytes "+Arrays.toString(got)+" want "+Arrays.toString(want));
+		String back = Strings.utf(b, 3, put);
+		String wantback = new String(want, StandardCharsets.UTF_8);
+		if(!back.equals(wantback))
+			error(s, "utf gave \""+back+"\" want \""+wantback+"\"");
+		if(b.position() != 3+put)
+			error(s, "utf moved the position");
+	}
+
+	static void error(String s, String msg){
+		errors++;
+		System.out.println(quote(s)+": "+msg);
+	}
+
+	static String quote(String s){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c < 0x7F)
+				sb.append(c);
+			else
+				sb.append(String.format("\\u%04x", (int)c));
+		}
+		return sb.toString();
+	}
+}